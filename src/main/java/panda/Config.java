@@ -50,6 +50,10 @@ public class Config {
 	public static int layout = 1;
 	public static int bands = 10;
 	public static int wait = 0;
+	public static boolean gapless = true;
+	public static int crossfade = 0;
+	public static boolean watch = false;
+	public static boolean lazy = false;
 	public static Map<String,Color> genreColors = new HashMap<String,Color>();
 	public static Color currentTrackColor = Color.RED;
 	public static Color nextTrackColor = Color.GREEN;
@@ -131,6 +135,10 @@ public class Config {
 		layout = getIntProperty("panda.gui.layout", new int[] {1, 2, 3, 4}, 1);
 		bands = getIntProperty("panda.equalizer.bands", new int[] {10, 15, 25, 31}, 10);
 		wait = getIntProperty("panda.wait", new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, 0);
+		gapless = getBooleanProperty("panda.gapless", gapless);
+		crossfade = getIntProperty("panda.crossfade", new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, 0);
+		watch = getBooleanProperty("panda.watch", watch);
+		lazy = getBooleanProperty("panda.lazy", lazy);
 
 		currentTrackColor = getColorProperty("panda.colour.currentTrack", currentTrackColor);
 		nextTrackColor = getColorProperty("panda.colour.nextTrack", nextTrackColor);
@@ -406,6 +414,42 @@ public class Config {
 		pw.println("panda.wait=" + wait);
 		pw.println("");
 		pw.println("");
+		pw.println("# Gapless playback");
+		pw.println("# If true, then the next track is opened and its first few seconds are decoded");
+		pw.println("# in the background while the current track is still playing,");
+		pw.println("# so that there is no audible gap between tracks.");
+		pw.println("# Default value is \"true\"");
+		pw.println("");
+		pw.println("panda.gapless=" + gapless);
+		pw.println("");
+		pw.println("");
+		pw.println("# Crossfade");
+		pw.println("# The number of seconds over which a cortina is crossfaded into the next track.");
+		pw.println("# Both tracks are played at the same time, with the cortina fading out as the next track fades in.");
+		pw.println("# Only applies to cortinas, ie. tracks that don't have one of the projector genres.");
+		pw.println("# The value must be between 0 and 10, inclusive.");
+		pw.println("# Default value is \"0\" (no crossfade)");
+		pw.println("");
+		pw.println("panda.crossfade=" + crossfade);
+		pw.println("");
+		pw.println("");
+		pw.println("# Watch tracks directory");
+		pw.println("# If true, then WAV files that are added to (or removed from) the tracks directory while Panda is running");
+		pw.println("# are added to (or marked as missing in) the library, without having to restart.");
+		pw.println("# Default value is \"false\"");
+		pw.println("");
+		pw.println("panda.watch=" + watch);
+		pw.println("");
+		pw.println("");
+		pw.println("# Lazy loading");
+		pw.println("# If true, then track files that are not in the track index are not probed at startup,");
+		pw.println("# but in the background once they are displayed or queued.");
+		pw.println("# This makes startup faster for large libraries, at the cost of times being blank for a moment.");
+		pw.println("# Default value is \"false\"");
+		pw.println("");
+		pw.println("panda.lazy=" + lazy);
+		pw.println("");
+		pw.println("");
 		pw.println("");
 		pw.println("# ------------ Colours ------------");
 		pw.println("");
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import javax.sound.sampled.AudioFormat;
+
+import panda.equalizer.EqualizerAudioInputStream;
+
+// Mixes the start of the incoming track into the end of the outgoing track, sample by sample.
+// An equal-power curve is used, so that the overall loudness stays constant during the crossfade.
+// The outgoing track does the mixing in its own play loop, after which the incoming track takes over the stream
+// and continues playing from where the crossfade ended.
+// Only one instance is needed (tracks are played one at a time) and it is reused for every crossfade,
+// so that nothing is allocated while mixing.
+// Only 16-bit signed PCM is supported.
+class Crossfader {
+	private static final int IDLE = 0;
+	private static final int MIXING = 1;
+	private static final int HANDED_OVER = 2;
+
+	private byte[] buffer = new byte[Track.BUFFER_SIZE];
+	private int state = IDLE;
+	private Track track; // The incoming track
+	private EqualizerAudioInputStream stream; // The incoming track's stream
+	private int read; // Number of bytes of the incoming stream that have been mixed
+	private boolean bigEndian;
+	private int channels;
+	private long frames; // Length of the crossfade
+	private long frame; // Number of frames that have been mixed so far
+
+	static boolean isSupported(AudioFormat format) {
+		return format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED) && format.getSampleSizeInBits() == 16;
+	}
+
+	void start(Track track, EqualizerAudioInputStream stream, AudioFormat format, long frames) {
+		Util.log(Level.FINE, "Starting crossfade of " + frames + " frames into track: " + track.getFilename());
+		this.track = track;
+		this.stream = stream;
+		this.read = 0;
+		this.bigEndian = format.isBigEndian();
+		this.channels = format.getChannels();
+		this.frames = frames;
+		this.frame = 0;
+		state = MIXING;
+	}
+
+	boolean isMixing() {
+		return state == MIXING;
+	}
+
+	// Mixes the next len bytes of the incoming track into the specified buffer of the outgoing track
+	void mix(byte[] b, int len) throws IOException {
+		int length = 0;
+		while (length < len) {
+			int n = stream.read(buffer, length, len - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		read += length;
+		// If the incoming track is shorter than the crossfade, then mix in silence
+		for (int i = length; i < len; i++) {
+			buffer[i] = 0;
+		}
+		int hi = bigEndian ? 0 : 1;
+		int lo = bigEndian ? 1 : 0;
+		for (int i = 0; i + 1 < len; ) {
+			double t = frame < frames ? (double) frame / frames : 1.0;
+			double fadeOut = Math.cos(t * Math.PI / 2);
+			double fadeIn = Math.sin(t * Math.PI / 2);
+			for (int channel = 0; channel < channels && i + 1 < len; channel++, i += 2) {
+				int outgoing = (b[i + hi] << 8) | (b[i + lo] & 0xff);
+				int incoming = (buffer[i + hi] << 8) | (buffer[i + lo] & 0xff);
+				int sample = (int) (outgoing * fadeOut + incoming * fadeIn);
+				if (sample > 32767) {
+					sample = 32767;
+				} else if (sample < -32768) {
+					sample = -32768;
+				}
+				b[i + hi] = (byte) (sample >> 8);
+				b[i + lo] = (byte) sample;
+			}
+			frame++;
+		}
+	}
+
+	// Invoked when the outgoing track has ended, so that the incoming track can continue where the crossfade stopped
+	void handOver() {
+		state = HANDED_OVER;
+	}
+
+	// Returns the stream of the specified track if a crossfade into it was handed over, else null.
+	// Any crossfade into a different track is discarded (eg. if the next track was changed at the last moment).
+	EqualizerAudioInputStream take(Track track) {
+		EqualizerAudioInputStream result = null;
+		if (state == HANDED_OVER && this.track == track) {
+			result = stream;
+			stream = null;
+		}
+		cancel();
+		return result;
+	}
+
+	// Returns the number of bytes of the incoming track that have already been played
+	int getRead() {
+		return read;
+	}
+
+	// Stops mixing and discards the incoming stream
+	void cancel() {
+		if (stream != null) {
+			Util.log(Level.FINE, "Cancelling crossfade into track: " + track.getFilename());
+			try {
+				stream.close();
+			} catch (IOException ioe) {
+				Util.log(Level.WARNING, "Error closing crossfade stream: " + ioe);
+			}
+		}
+		state = IDLE;
+		track = null;
+		stream = null;
+	}
+}
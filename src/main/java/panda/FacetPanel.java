@@ -0,0 +1,136 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.awt.BorderLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+
+// The FacetPanel narrows down the displayed playlist by genre, orchestra, singer and a range of years,
+// eg. all Vals by Rodolfo Biagi from 1938 to 1942 with Carlos Heredia.
+// The choices are taken from the tag index whenever a list is opened, so they always reflect the current tags.
+class FacetPanel extends JPanel {
+	private static final String ANY = "Any";
+	private static final String[] FACETS = {"genre", "orchestra", "singers"};
+	private static final String[] LABELS = {"Genre", "Orchestra", "Singer"};
+
+	private JComboBox[] comboBoxes = new JComboBox[FACETS.length];
+	private JTextField fromField = new JTextField(4);
+	private JTextField toField = new JTextField(4);
+	private ActionListener listener; // Notified whenever the selection changes
+	private String selection = ""; // Selection that the listener was last notified of
+
+	FacetPanel(ActionListener listener) {
+		super(new GridLayout(FACETS.length + 1, 2));
+		this.listener = listener;
+		setBorder(new EmptyBorder(4, 4, 4, 4));
+		ActionListener changed = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				changed();
+			}
+		};
+		for (int i = 0; i < FACETS.length; i++) {
+			final JComboBox comboBox = new JComboBox(new String[] {ANY});
+			final String facet = FACETS[i];
+			comboBox.addPopupMenuListener(new PopupMenuListener() {
+				public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+					Object selected = comboBox.getSelectedItem();
+					DefaultComboBoxModel model = new DefaultComboBoxModel();
+					model.addElement(ANY);
+					for (String value: TagIndex.getValues(facet)) {
+						model.addElement(value);
+					}
+					model.setSelectedItem(selected);
+					comboBox.setModel(model);
+				}
+				public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+				}
+				public void popupMenuCanceled(PopupMenuEvent e) {
+				}
+			});
+			comboBox.addActionListener(changed);
+			comboBoxes[i] = comboBox;
+			add(new JLabel(LABELS[i]));
+			add(comboBox);
+		}
+		fromField.addActionListener(changed);
+		toField.addActionListener(changed);
+		FocusAdapter focusAdapter = new FocusAdapter() {
+			public void focusLost(FocusEvent e) {
+				changed();
+			}
+		};
+		fromField.addFocusListener(focusAdapter);
+		toField.addFocusListener(focusAdapter);
+		JPanel yearPanel = new JPanel(new BorderLayout());
+		yearPanel.add(fromField, BorderLayout.WEST);
+		yearPanel.add(new JLabel(" - ", JLabel.CENTER));
+		yearPanel.add(toField, BorderLayout.EAST);
+		add(new JLabel("Year"));
+		add(yearPanel);
+	}
+
+	// Returns the query for the selected facets, which is empty if nothing is selected
+	TagIndex.Query getQuery() {
+		TagIndex.Query query = new TagIndex.Query();
+		for (int i = 0; i < FACETS.length; i++) {
+			Object selected = comboBoxes[i].getSelectedItem();
+			if (selected != null && !ANY.equals(selected)) {
+				query.and(FACETS[i], (String) selected);
+			}
+		}
+		int from = parseYear(fromField, Integer.MIN_VALUE);
+		int to = parseYear(toField, Integer.MAX_VALUE);
+		if (from != Integer.MIN_VALUE || to != Integer.MAX_VALUE) {
+			query.and("year", from, to);
+		}
+		return query;
+	}
+
+	private static int parseYear(JTextField field, int defaultValue) {
+		String text = field.getText().trim();
+		if (text.length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(text);
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	// Only notifies the listener if the selection actually changed (eg. not when focus merely moves between the fields)
+	private void changed() {
+		String s = getQuery().toString();
+		if (!s.equals(selection)) {
+			selection = s;
+			listener.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, s));
+		}
+	}
+}
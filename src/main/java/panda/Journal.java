@@ -0,0 +1,229 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+// The Journal class keeps track of edits to titles, tags and playlists, so that nothing is saved unless something changed.
+// Edits are appended to the journal file a few lines at a time, which means that the tag and playlist files
+// (which can be several megabytes) only need to be rewritten every now and then.
+// At startup the journal is replayed on top of the tag and playlist files.
+// Before those files are rewritten the journal is set aside, and it is only deleted once they have been replaced,
+// so if anything goes wrong in between then the set aside journal is simply replayed as well.
+// Each line of the journal holds one edit, with tab-separated fields:
+//   title <file> <title>
+//   tag <file> <name> [<value>] (the tag is removed if there is no value)
+//   playlist <name> <file>... (all the tracks in the playlist)
+class Journal {
+	private static final Object fileLock = new Object(); // Held while the journal file is written
+	private static boolean open; // Edits are only recorded once the library has been loaded
+	private static boolean dirty; // True if anything changed since the tag and playlist files were written
+	private static List<String> lines = new ArrayList<String>(); // Edits that haven't been appended to the file yet
+	private static Map<Playlist, Boolean> playlists = new IdentityHashMap<Playlist, Boolean>(); // Edited playlists
+
+	// Reads the edits that were recorded since the tag and playlist files were last written, in the order they were made
+	static synchronized List<String[]> read() {
+		List<String[]> edits = new ArrayList<String[]>();
+		read(getFile(true), edits);
+		read(getFile(false), edits);
+		if (!edits.isEmpty()) {
+			// The tag and playlist files are out of date
+			dirty = true;
+		}
+		return edits;
+	}
+
+	// Starts recording edits (the library has been loaded, so the tracks no longer change as files are read)
+	static synchronized void open() {
+		open = true;
+	}
+
+	static synchronized void title(Track track, String title) {
+		record("title", track.getFilename(), title);
+	}
+
+	static synchronized void tag(Track track, String name, String value) {
+		if (value == null) {
+			record("tag", track.getFilename(), name);
+		} else {
+			record("tag", track.getFilename(), name, value);
+		}
+	}
+
+	// Invoked when tracks are added to or removed from a playlist.
+	// The playlist is only written when the journal is flushed, so a burst of edits results in a single line.
+	static synchronized void changed(Playlist playlist) {
+		if (open) {
+			playlists.put(playlist, Boolean.TRUE);
+			dirty = true;
+		}
+	}
+
+	// Appends the edits made since the last flush to the journal file.
+	// Edited playlists are written in full, under their names in the registry.
+	static void flush(PlaylistRegistry registry) {
+		synchronized (fileLock) {
+			List<String> list;
+			List<Playlist> edited;
+			synchronized (Journal.class) {
+				list = lines;
+				lines = new ArrayList<String>();
+				edited = new ArrayList<Playlist>(playlists.keySet());
+				playlists.clear();
+			}
+			// The playlists are copied without holding the lock, since they report their edits while holding their own lock
+			for (Playlist playlist: edited) {
+				String name = registry.getName(playlist);
+				if (name == null || name.equals("Tracks")) {
+					// The main playlist is not saved
+					continue;
+				}
+				StringBuilder sb = new StringBuilder("playlist\t").append(clean(name));
+				for (Track track: playlist.getTracks()) {
+					sb.append('\t').append(clean(track.getFilename()));
+				}
+				list.add(sb.toString());
+			}
+			if (list.isEmpty()) {
+				return;
+			}
+			try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getFile(false), true), "UTF-8"))) {
+				for (String line: list) {
+					pw.println(line);
+				}
+			} catch (IOException ioe) {
+				Util.log(Level.WARNING, "Error writing journal: " + ioe);
+			}
+		}
+	}
+
+	// Sets the journal aside before the tag and playlist files are rewritten, so that new edits go to a new journal.
+	// Returns false (and sets nothing aside) if nothing has changed since those files were last written.
+	// If the journal cannot be set aside then it still counts as changed, so that the rewrite is tried again next time.
+	static boolean begin(PlaylistRegistry registry) throws IOException {
+		synchronized (fileLock) {
+			flush(registry);
+			synchronized (Journal.class) {
+				if (!dirty) {
+					return false;
+				}
+			}
+			setAside();
+			// Edits made from now on are part of the rewrite anyway (as well as of the new journal)
+			synchronized (Journal.class) {
+				dirty = false;
+			}
+			return true;
+		}
+	}
+
+	private static void setAside() throws IOException {
+		File file = getFile(false);
+		File old = getFile(true);
+		if (!file.exists()) {
+			return;
+		}
+		if (!old.exists()) {
+			if (!file.renameTo(old)) {
+				throw new IOException("Error renaming " + file + " to " + old);
+			}
+			return;
+		}
+		// The previous rewrite failed, so its journal is still needed as well
+		List<String[]> edits = new ArrayList<String[]>();
+		read(file, edits);
+		try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(old, true), "UTF-8"))) {
+			for (String[] edit: edits) {
+				pw.println(join(edit));
+			}
+		}
+		if (!file.delete()) {
+			throw new IOException("Error deleting " + file);
+		}
+	}
+
+	// Invoked once the tag and playlist files have been replaced, after which the set aside journal is no longer needed
+	static void commit() {
+		synchronized (fileLock) {
+			File old = getFile(true);
+			if (old.exists() && !old.delete()) {
+				Util.log(Level.WARNING, "Error deleting " + old);
+			}
+		}
+	}
+
+	// Invoked if the tag and playlist files could not be rewritten, so that it is tried again next time
+	static synchronized void abort() {
+		dirty = true;
+	}
+
+	private static void record(String... fields) {
+		if (!open) {
+			return;
+		}
+		lines.add(join(fields));
+		dirty = true;
+	}
+
+	private static String join(String[] fields) {
+		StringBuilder sb = new StringBuilder();
+		for (String field: fields) {
+			if (sb.length() > 0) {
+				sb.append('\t');
+			}
+			sb.append(clean(field));
+		}
+		return sb.toString();
+	}
+
+	// Tabs and line breaks would corrupt the journal
+	private static String clean(String field) {
+		return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static void read(File file, List<String[]> edits) {
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if (line.length() > 0) {
+					edits.add(line.split("\t", -1));
+				}
+			}
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error reading journal " + file + ": " + ioe);
+		}
+	}
+
+	private static File getFile(boolean old) {
+		return new File(Config.PANDA_HOME + (old ? "panda.journal.old" : "panda.journal"));
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioInputStream;
+
+// An audio stream over the data chunk of a WAV file, mapped into memory.
+// Reading merely copies bytes out of the mapping, and seeking merely changes the position,
+// so there is no need to re-open the file and skip from the start in order to seek backwards.
+// A single mapping is limited to 2GB, so larger files are left to Java Sound.
+class MappedAudioInputStream extends AudioInputStream {
+	private static final int PAGE_SIZE = 4096;
+	private MappedByteBuffer data;
+	private int touched; // Only used to make sure that touching pages isn't optimized away
+
+	private MappedAudioInputStream(WavFile wav) throws IOException {
+		// All reads are overridden, so the superclass never reads from its stream
+		super(new ByteArrayInputStream(new byte[0]), wav.getFormat(), wav.getFrameLength());
+		try (RandomAccessFile raf = new RandomAccessFile(wav.getFile(), "r")) {
+			// The mapping remains valid after the file is closed
+			data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, wav.getDataOffset(), wav.getDataLength());
+		}
+	}
+
+	// Returns null if the file cannot be mapped, ie. it is not an uncompressed PCM WAV file or it is too large
+	static MappedAudioInputStream open(File file) throws IOException {
+		WavFile wav = WavFile.read(file);
+		if (wav == null || wav.getDataLength() > Integer.MAX_VALUE) {
+			return null;
+		}
+		return new MappedAudioInputStream(wav);
+	}
+
+	// Moves to the specified byte position within the audio data
+	void seek(long position) throws IOException {
+		checkOpen();
+		data.position((int) Math.min(Math.max(position, 0), data.limit()));
+	}
+
+	long getPosition() {
+		return data == null ? 0 : data.position();
+	}
+
+	// Reads the pages of the next specified number of bytes from disk, without changing the position.
+	// Intended to be invoked ahead of time, so that playing doesn't have to wait for a slow drive.
+	void load(long bytes) {
+		int end = (int) Math.min(data.position() + bytes, data.limit());
+		for (int i = data.position(); i < end; i += PAGE_SIZE) {
+			touched += data.get(i);
+		}
+	}
+
+	public int read() throws IOException {
+		checkOpen();
+		if (!data.hasRemaining()) {
+			return -1;
+		}
+		return data.get() & 0xFF;
+	}
+
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		if (len == 0) {
+			return 0;
+		}
+		int n = Math.min(len, data.remaining());
+		if (n == 0) {
+			return -1;
+		}
+		data.get(b, off, n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		checkOpen();
+		int skip = (int) Math.min(Math.max(n, 0), data.remaining());
+		data.position(data.position() + skip);
+		return skip;
+	}
+
+	public int available() throws IOException {
+		checkOpen();
+		return data.remaining();
+	}
+
+	public void close() throws IOException {
+		// The mapping is released when it is garbage collected
+		data = null;
+	}
+
+	public void mark(int readlimit) {
+	}
+
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void checkOpen() throws IOException {
+		if (data == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
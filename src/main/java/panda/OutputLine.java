@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.logging.Level;
+
+import javax.sound.sampled.*;
+
+// The OutputLine class keeps a single line open across tracks.
+// The line is reused for as long as tracks have the same audio format,
+// and is only closed and reopened when the format changes.
+// Since the line stays open, so do its gain and balance controls,
+// which means that they only need to be obtained once per line.
+class OutputLine {
+	private static SourceDataLine line;
+	private static AudioFormat format; // The format that the line was opened with
+	private static FloatControl gainControl;
+	private static FloatControl balanceControl;
+
+	// Returns an open and started line for the specified format
+	static synchronized SourceDataLine open(AudioFormat audioFormat) throws LineUnavailableException {
+		if (line != null && line.isOpen() && matches(audioFormat)) {
+			Util.log(Level.FINE, "Reusing line...");
+			return line;
+		}
+		if (line != null) {
+			Util.log(Level.INFO, "Audio format changed from " + format + " to " + audioFormat);
+			close();
+		}
+		Util.log(Level.FINE, "Obtaining line...");
+		DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
+		SourceDataLine newLine = (SourceDataLine) AudioSystem.getLine(info);
+
+		Util.log(Level.FINE, "Adding line listener...");
+		newLine.addLineListener(new WavLineListener());
+
+		Util.log(Level.FINE, "Opening line...");
+		newLine.open(audioFormat);
+		// Cannot obtain controls before line is opened
+		if (newLine.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
+			gainControl = (FloatControl) newLine.getControl(FloatControl.Type.MASTER_GAIN);
+		} else {
+			gainControl = null;
+		}
+		if (newLine.isControlSupported(FloatControl.Type.BALANCE)) {
+			balanceControl = (FloatControl) newLine.getControl(FloatControl.Type.BALANCE);
+		} else {
+			balanceControl = null;
+		}
+		Util.log(Level.FINE, "Starting line...");
+		newLine.start();
+		line = newLine;
+		format = audioFormat;
+		return line;
+	}
+
+	// Plays whatever is still buffered in the line, then closes it
+	static synchronized void close() {
+		if (line == null) {
+			return;
+		}
+		line.drain();
+		line.close();
+		line = null;
+		format = null;
+		gainControl = null;
+		balanceControl = null;
+	}
+
+	// Returns null if the line is not open or doesn't support a gain control
+	static synchronized FloatControl getGainControl() {
+		return gainControl;
+	}
+
+	// Returns null if the line is not open or doesn't support a balance control
+	static synchronized FloatControl getBalanceControl() {
+		return balanceControl;
+	}
+
+	private static boolean matches(AudioFormat audioFormat) {
+		return format != null && format.matches(audioFormat) && audioFormat.matches(format);
+	}
+
+	static class WavLineListener implements LineListener {
+		boolean first = true;
+
+		public void update(LineEvent event) {
+			Util.log(Level.FINE, "Line event:" + event);
+			if (first) {
+				first = false;
+				Line line = event.getLine();
+				printInfo(line);
+			}
+			LineEvent.Type type = event.getType();
+			if (type.equals(LineEvent.Type.OPEN)) {
+				Util.log(Level.FINE, "OPEN");
+			}
+			if (type.equals(LineEvent.Type.START)) {
+				Util.log(Level.FINE, "START");
+			}
+			if (type.equals(LineEvent.Type.STOP)) {
+				Util.log(Level.FINE, "STOP");
+			}
+			if (type.equals(LineEvent.Type.CLOSE)) {
+				Util.log(Level.FINE, "CLOSE");
+			}
+		}
+
+		private void printInfo(Line line) {
+			Line.Info info = line.getLineInfo();
+			Util.log(Level.FINE, "Line info: " + info);
+			Control[] controls = line.getControls();
+			for (int i = 0; i < controls.length; i++) {
+				Control control = controls[i];
+				Util.log(Level.FINE, "Control #" + i + ": " + control);
+			}
+		}
+	}
+}
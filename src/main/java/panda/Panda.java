@@ -20,15 +20,22 @@ import java.awt.*;
 import java.awt.event.*;
 import java.beans.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Map;
@@ -36,10 +43,13 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 import javax.sound.sampled.*;
 import javax.swing.*;
 import javax.swing.border.*;
@@ -58,6 +68,8 @@ public class Panda extends JFrame {
 	private static SplashScreen splash = SplashScreen.getSplashScreen();
 	private static Graphics2D splashGraphics;
 	private static String FILTER_TEXT = "Filter..."; // Default filter text
+	private static final int MAX_LOAD_THREADS = 8; // Loading tracks is mostly I/O, so more threads than this won't help
+	private static final int LOAD_BATCH = 500; // Number of loaded tracks that are added to the table at a time
 
 	private static List<Image> iconImages = new ArrayList<Image>();
 
@@ -67,15 +79,15 @@ public class Panda extends JFrame {
 	private Container contentPane;
 	private List<String> filenames = new ArrayList<String>();
 	private Map<String, Track> trackMap = new HashMap<String, Track>();  // A map of filename to Track instances
-	private Map<String, List<Track>> playlistMap = new HashMap<String, List<Track>>();  // A map of playlist name to list of Track instances
-	private List<String> playlists = new ArrayList<String>(); // An list of playlist names, in the order that they appear in the playlist file, with main "Tracks" playlist at the head
+	private PlaylistRegistry playlistRegistry = new PlaylistRegistry(); // All playlists by name, in the order that they appear in the playlist file, with main "Tracks" playlist at the head
 	private List<Track> displayPlaylist; // The playlist that is selected in the tree (and displayed in the table)
-	private List<Track> currentTrackPlaylist = new ArrayList<Track>();
+	private Playlist trackPlaylist = new Playlist(); // The main "Tracks" playlist of all tracks
+	private List<Track> currentTrackPlaylist = trackPlaylist;
 	private List<Track> nextTrackPlaylist = currentTrackPlaylist;
 	private List<Track> nextCortinaPlaylist;
 	private List<Track> nextTandaPlaylist;
-	private List<Track> emptyPlaylist = new ArrayList<Track>(); 
-	private List<Track> historyPlaylist = new ArrayList<Track>();
+	private List<Track> emptyPlaylist = new Playlist(); 
+	private List<Track> historyPlaylist = new Playlist();
 	private List<Track> holdPlaylist;
 	// NOTE: Use track indexes rather than track instances, since tracks can appear more than once in a playlist
 	private int currentTrackIndex = -1;
@@ -83,8 +95,14 @@ public class Panda extends JFrame {
 	private int nextCortinaIndex = -1; 
 	private int nextTandaIndex = -1; 
 	private PlayThread playThread = new PlayThread();
+	private PrepareThread prepareThread = new PrepareThread();
 	private SaveThread saveThread = new SaveThread();
+	private FilterThread filterThread = new FilterThread();
+	private Map<List<Track>, TandaIndex> tandaIndexes = new IdentityHashMap<List<Track>, TandaIndex>(); // Built as needed
+	private WatchThread watchThread; // Only if the tracks directory is watched
+	private TrackIndex trackIndex = new TrackIndex();
 	private boolean settingPosition; // Flag to indicate that the position is being set during play, ie. not by the user dragging the slider.
+	private volatile boolean loaded; // Set once the library has been shown, before which nothing may be saved (it would be saved incomplete)
 	private int prevPosition = -1; // The last position that the slider was set to by the user
 
 	// UI components
@@ -123,6 +141,11 @@ public class Panda extends JFrame {
 	private JLabel statusLabel = new JLabel(" ");
 	private JTextField filterField = new JTextField(FILTER_TEXT, 20);
 	private JCheckBox filterCheckbox = new JCheckBox();  // Unselected by default
+	private FacetPanel facetPanel = new FacetPanel(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			refresh();
+		}
+	});
 	private TableColumnModel tableColumnModel = new PandaTableColumnModel();
 
 	private JButton showCurrentTrackButton = new JButton();
@@ -134,9 +157,21 @@ public class Panda extends JFrame {
 	private Projector projector;
 
 	private String filter;
+	private String[] searchColumns = new String[0]; // Names of the searchable columns, as last taken on the event dispatch thread
+	private SearchIndex searchIndex = new SearchIndex() {
+		protected String[] getValues(Track track, String[] columns) {
+			String[] values = new String[columns.length];
+			for (int i = 0; i < values.length; i++) {
+				// Searching must not probe every track in the library (lazy mode)
+				Object value = getColumnValue(track, columns[i], false);
+				values[i] = value == null ? "" : value.toString();
+			}
+			return values;
+		}
+	};
 
 	static {
-		long start = Util.startTimer();
+		Timings.Phase phase = Timings.begin("init");
 		// Ensure configuration is loaded first by referencing Util class...
 		Util.log(Level.INFO, "Initializing Panda...");
 		updateSplash("Initializing Panda...");
@@ -160,7 +195,7 @@ public class Panda extends JFrame {
 		// Ensure that all text is anti-aliased (especially for projector)
 		System.setProperty("awt.useSystemAAFontSettings","on"); 
 		System.setProperty("swing.aatext", "true"); 
-		Util.stopTimer(start, "Initialization");
+		phase.end("Initialization");
 	}
 
 	static void updateSplash(String message) {
@@ -171,24 +206,31 @@ public class Panda extends JFrame {
 				return;
 			}
 		}
-		if (splashGraphics == null) {
-			splashGraphics = splash.createGraphics();
+		if (!splash.isVisible()) {
+			// The splash screen is closed when the window is shown, which happens while the library is still being loaded
+			return;
+		}
+		try {
 			if (splashGraphics == null) {
-				return;
+				splashGraphics = splash.createGraphics();
+				if (splashGraphics == null) {
+					return;
+				}
 			}
+			FontMetrics fm = splashGraphics.getFontMetrics();
+			int width = fm.stringWidth(message);
+			splashGraphics.setColor(Color.WHITE);
+			splashGraphics.fillRect(58, 56, 140, 16);
+			splashGraphics.setPaintMode();
+			splashGraphics.setColor(Color.BLACK);
+			splashGraphics.drawString(message, (256 - width) / 2, 68);
+			splash.update();
+		} catch (IllegalStateException ise) {
+			// Closed in the meantime
 		}
-		FontMetrics fm = splashGraphics.getFontMetrics();
-		int width = fm.stringWidth(message);
-		splashGraphics.setColor(Color.WHITE);
-		splashGraphics.fillRect(58, 56, 140, 16);
-		splashGraphics.setPaintMode();
-		splashGraphics.setColor(Color.BLACK);
-		splashGraphics.drawString(message, (256 - width) / 2, 68);
-		splash.update();
 	}
 
 	public static void main(String[] args) throws Exception {
-		final long jvmStart = Util.startTimer();
 		long start = -1;
 		if (args.length == 1) {
 			try {
@@ -197,6 +239,8 @@ public class Panda extends JFrame {
 			}
 		}
 		final long overallStart = start;
+		Timings.start(overallStart);
+		Timings.mark("main");
 		Util.log(Level.FINE, "Starting Panda...");
 		updateSplash("Starting Panda...");
 		UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -230,10 +274,10 @@ public class Panda extends JFrame {
 		// JFrame:
 		// - On Ubuntu the window controls (close, maximize, minimize) are still displayed (even when setting it undecorated)
 		// + On Ubuntu the task switcher works
+		// The window is set up before the library is loaded, since Panda shows it as soon as the tree and table have been built
 		if (Config.isFullscreen) {
 			JWindow window = new JWindow();
 			Container contentPane = window.getContentPane();
-			panda = new Panda(contentPane);
 			GraphicsConfiguration gc = window.getGraphicsConfiguration();
 			Insets insets = toolkit.getScreenInsets(gc);
 			int width = dimension.width - insets.left - insets.right;
@@ -241,66 +285,149 @@ public class Panda extends JFrame {
 			window.setSize(width, height);
 			window.setLocation(insets.left, insets.top);
 			window.setIconImages(iconImages);
+			window.addWindowListener(new WindowAdapter() {
+				public void windowOpened(WindowEvent e) {
+					opened(overallStart);
+				}
+			});
+			panda = new Panda(contentPane);
 			window.setVisible(true);
 		} else {
 			JFrame frame = new JFrame("Panda");
 			Container contentPane = frame.getContentPane();
-			panda = new Panda(contentPane);
 			int width = 2 * dimension.width / 3;
 			int height = 2 * dimension.height / 3;
 			frame.setSize(width, height);
 			frame.setLocation((dimension.width - width) / 2, (dimension.height - height) / 3);
 			frame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
 			frame.addWindowListener(new WindowAdapter() {
-				public void windowClosing(WindowEvent e) {
-					panda.quit();
-				}
 				public void windowOpened(WindowEvent e) {
-					Util.stopTimer(jvmStart, "In-JVM startup");
-					if (overallStart > 0) {
-						Util.stopTimer(overallStart, "Overall startup");
-					}
+					opened(overallStart);
 				}
 			});
 			frame.setIconImages(iconImages);
+			panda = new Panda(contentPane);
+			// Quitting is only possible once the library has been loaded (otherwise it would be saved incomplete)
+			frame.addWindowListener(new WindowAdapter() {
+				public void windowClosing(WindowEvent e) {
+					panda.quit();
+				}
+			});
 			frame.setVisible(true);
 		}
 	}
 
+	// Records when the window is first opened, which happens while the library is still being loaded.
+	// The overall start (if passed in by the launch script) includes the time taken to start the JVM.
+	// The run is added to the timings history once the library has been loaded.
+	private static void opened(long overallStart) {
+		Timings.mark("windowOpened");
+		if (overallStart > 0) {
+			long millis = System.currentTimeMillis() - overallStart;
+			Util.log(Level.INFO, "Overall startup took " + millis + " millseconds");
+			Timings.set("overall", millis);
+		}
+	}
+
+	// Startup is pipelined:
+	// - The tag and playlist files are read on background threads while the tracks directory is scanned and the tracks loaded.
+	// - The controls that don't depend on the library are created on the event dispatch thread in the meantime.
+	// - As soon as the names of the playlists are known, the tree and table are built and the window is shown.
+	// - Tracks are added to the table in batches as they are loaded, after which the tags are applied,
+	//   the main playlist is sorted and the other playlists are filled in.
+	// Playing and editing are only enabled once the whole library has been loaded.
 	public Panda(Container contentPane) throws IOException, UnsupportedAudioFileException {
 		this.contentPane = contentPane;
-		updateSplash("Scanning tracks...");
-		scan();
-		updateSplash("Loading tracks...");
-		loadTracks();
-		updateSplash("Reading tags...");
-		readTags();
-		// Note: Need to sort main playlist after loading the tracks AND reading the tags.
-		Collections.sort(currentTrackPlaylist);
-		updateSplash("Reading playlists...");
-		readPlaylists();
-		// Not sure if I need to do this on event dispatch thread - better safe than sorry...
-		updateSplash("Building UI...");
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				buildUI();
-			}
-		});
+		Timings.Phase phase = Timings.begin("library");
 		customPresets = new int[Config.bands];
+		projector = new Projector(this);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<List<TagEntry>> tags = executor.submit(new Callable<List<TagEntry>>() {
+				public List<TagEntry> call() {
+					return readTags();
+				}
+			});
+			Future<List<PlaylistEntry>> playlistEntries = executor.submit(new Callable<List<PlaylistEntry>>() {
+				public List<PlaylistEntry> call() {
+					return readPlaylists();
+				}
+			});
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					createControls();
+				}
+			});
+			// Edits made since the tag and playlist files were last written are applied on top of them
+			List<String[]> edits = Journal.read();
+			updateSplash("Reading playlists...");
+			List<PlaylistEntry> entries = getResult(playlistEntries);
+			readJournalPlaylists(edits, entries);
+			registerPlaylists(entries);
+			// Not sure if I need to do this on event dispatch thread - better safe than sorry...
+			updateSplash("Building UI...");
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					buildUI();
+					// The window is shown while the library is still being loaded
+					Window window = SwingUtilities.getWindowAncestor(Panda.this.contentPane);
+					if (window != null) {
+						window.setVisible(true);
+					}
+				}
+			});
+			updateSplash("Scanning tracks...");
+			scan();
+			updateSplash("Loading tracks...");
+			loadTracks();
+			updateSplash("Reading tags...");
+			List<TagEntry> tagEntries = getResult(tags);
+			readJournalTags(edits, tagEntries);
+			applyTags(tagEntries);
+			updateSplash("Reading playlists...");
+			final Map<String, List<Track>> contents = resolvePlaylists(entries);
+			invokeAndWait(new Runnable() {
+				public void run() {
+					showLibrary(contents);
+				}
+			});
+			// From now on, edits are recorded in the journal
+			Journal.open();
+		} finally {
+			executor.shutdownNow();
+		}
+		phase.end("Loading of library");
 		updateSplash("Starting threads...");
 		playThread.start();
+		if (Config.gapless || Config.crossfade > 0) {
+			prepareThread.start();
+		}
 		saveThread.start();
-		projector = new Projector(this);
-		if (splash != null) {
+		filterThread.start();
+		if (watchThread != null) {
+			watchThread.start();
+		}
+		if (splash != null && splash.isVisible()) {
 			splash.close();
 		}
+		Timings.mark("loaded");
+		Timings.save(true);
 	}
 	
 	// Kicks off scan of tracks directory
-	private void scan() {
-		long start = Util.startTimer();
+	private void scan() throws IOException {
+		Timings.Phase phase = Timings.begin("scan");
 		Util.log(Level.INFO, "Scanning tracks directory: " + TRACKS);
-		scanDir(new File(TRACKS));
+		if (Config.watch) {
+			try {
+				watchThread = new WatchThread();
+			} catch (IOException ioe) {
+				Util.log(Level.WARNING, "Cannot watch tracks directory: " + ioe);
+			}
+		}
+		scanDir(Paths.get(TRACKS), filenames, watchThread);
+		// Sort filenames (once, after the whole tree has been scanned) so that the tags file is sorted
+		Collections.sort(filenames);
 		StringBuffer sb = new StringBuffer();
 		for (String filename: filenames) {
 			sb.append(filename);
@@ -308,107 +435,218 @@ public class Panda extends JFrame {
 		}
 		int number = filenames.size();
 		Util.log(Level.FINE, "Found track files:\n" + sb);
-		Util.stopTimer(start, "Scan of " + number + " track files");
+		phase.end("Scan of " + number + " track files");
 	}
 
-	// Recursive method
-	private void scanDir(File dir) {
-		File[] entries = dir.listFiles();
-		if (entries == null) {
-			return;
-		}
-		Collections.sort(Arrays.asList(entries));
-		for (int i = 0; i < entries.length; i++) {
-			File file = entries[i];
-			if (file.isDirectory()) {
-				scanDir(file);
-			}
-			if (!file.isFile()) {
-				continue;
+	// Adds the filenames of all track files in the directory (and its subdirectories) to the list, unsorted.
+	// Directories are registered with the watcher (if any) as they are visited.
+	private static void scanDir(Path dir, final List<String> list, final WatchThread watcher) throws IOException {
+		Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (watcher != null) {
+					watcher.register(dir);
+				}
+				return FileVisitResult.CONTINUE;
 			}
-			if (file.getName().startsWith(".")) {
-				// Exclude hidden files (annoyingly added by Dropbox)
-				continue;
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && isTrackFile(file)) {
+					list.add(getFilename(file));
+				}
+				return FileVisitResult.CONTINUE;
 			}
-			String filename = file.getAbsolutePath();
-			filename = filename.substring(TRACKS.length());
-			if (filename.endsWith(".wav")) {
-				filenames.add(filename);
+
+			public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+				Util.log(Level.WARNING, "Cannot scan " + file + ": " + ioe);
+				return FileVisitResult.CONTINUE;
 			}
-		}
-		// Sort filenames so that the tags file is sorted
-		Collections.sort(filenames);
+		});
+	}
+
+	private static boolean isTrackFile(Path file) {
+		String name = file.getFileName().toString();
+		// Exclude hidden files (annoyingly added by Dropbox)
+		return !name.startsWith(".") && name.endsWith(".wav");
 	}
 
-	// Populates the main playlist of tracks, creating a new Track instance for every file found during scan
+	// Returns the filename relative to the tracks directory
+	private static String getFilename(Path file) {
+		return file.toAbsolutePath().toString().substring(TRACKS.length());
+	}
+
+	// Populates the main playlist of tracks, creating a new Track instance for every file found during scan.
 	private void loadTracks() throws IOException, UnsupportedAudioFileException {
 		Util.log(Level.INFO, "Loading track files...");
-		long start = Util.startTimer();
-		for (String filename: filenames) {
-			Track track = new Track(filename);
-			track.setTitle(filename); // By default, each track's title is the filename (minus the tracks directory name)
-			track.addTrackListener(new TrackListener() {
-				public void started(final Track track) {
-					SwingUtilities.invokeLater(new Runnable() {
-						public void run() {
-							int duration = track.getDuration();
-							leftLabel.setText(Util.minutesSeconds(0));
-							rightLabel.setText(Util.minutesSeconds(duration));
-							settingPosition = true;
-							positionSlider.setValue(0);
-							String s = track.getTitle();
-							// TODO: Make configurable in case some users use something other than "orchestra" (eg: "artist")
-							String orchestra = track.getTag("orchestra");  
-							if (orchestra != null && orchestra.length() > 0) {
-								s = s + " - " + orchestra;
-							}
-							trackLabel.setText(s);
-							if (track.isGainControlSupported()) {
-								volumeSlider.setEnabled(true);
-							} else {
-								volumeSlider.setEnabled(false);
-							}
-							if (track.isBalanceControlSupported()) {
-								balanceSlider.setEnabled(true);
-							} else {
-								balanceSlider.setEnabled(false);
-							}
-						}
-					});
+		Timings.Phase phase = Timings.begin("load");
+		// Tracks that haven't changed since the last run are taken from the index, without probing the files
+		trackIndex.load();
+		// Constructing a track involves file I/O, so the remaining tracks are constructed in parallel on a pool of threads.
+		// The results are collected in the order of the (sorted) filenames, and listeners are added on this thread.
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOAD_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Track> tracks = new ArrayList<Track>(filenames.size());
+		List<Track> indexed = new ArrayList<Track>(filenames.size());
+		List<Future<Track>> futures = new ArrayList<Future<Track>>(filenames.size());
+		int probed = 0;
+		try {
+			for (final String filename: filenames) {
+				Track track = trackIndex.get(filename);
+				if (track == null && Config.lazy) {
+					// Only probed once the track is displayed or queued
+					track = new Track(filename, null, 0);
 				}
-				public void positionChanged(final Track track) {
-					settingPosition = true;
-					SwingUtilities.invokeLater(new Runnable() {
-						public void run() {
-							int duration = track.getDuration();
-							int position = track.getPosition();
-							leftLabel.setText(Util.minutesSeconds(position));
-							rightLabel.setText(Util.minutesSeconds(duration - position));
-							positionSlider.setMinimum(0);
-							positionSlider.setMaximum(track.getDuration());
-							positionSlider.setValue(track.getPosition());
+				indexed.add(track);
+				if (track != null) {
+					futures.add(null);
+					continue;
+				}
+				futures.add(executor.submit(new Callable<Track>() {
+					public Track call() throws IOException, UnsupportedAudioFileException {
+						return new Track(filename);
+					}
+				}));
+				probed++;
+			}
+			// The tracks are shown in batches as they are loaded
+			List<Track> batch = new ArrayList<Track>();
+			for (int i = 0; i < filenames.size(); i++) {
+				Track track = indexed.get(i);
+				if (track == null) {
+					track = getTrack(futures.get(i));
+				}
+				addTrack(track);
+				tracks.add(track);
+				batch.add(track);
+				if (batch.size() == LOAD_BATCH) {
+					showTracks(batch);
+					batch = new ArrayList<Track>();
+				}
+			}
+			showTracks(batch);
+		} finally {
+			executor.shutdownNow();
+		}
+		trackIndex.save(tracks);
+		int number = tracks.size();
+		Timings.set("tracks", number);
+		Timings.set("probed", probed);
+		phase.end("Load of " + number + " tracks (" + probed + " probed with " + threads + " threads)");
+	}
+
+	// Waits for the track to be constructed, and rethrows whatever exception the constructor threw
+	private static Track getTrack(Future<Track> future) throws IOException, UnsupportedAudioFileException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while loading tracks", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof UnsupportedAudioFileException) {
+				throw (UnsupportedAudioFileException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error loading track", cause);
+		}
+	}
+
+	// Adds a loaded track to the library, with a listener that updates the UI while it plays.
+	// The track still needs to be added to the main playlist.
+	private void addTrack(Track track) {
+		String filename = track.getFilename();
+		track.setTitle(filename); // By default, each track's title is the filename (minus the tracks directory name)
+		track.addTrackListener(new TrackListener() {
+			public void started(final Track track) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						int duration = track.getDuration();
+						leftLabel.setText(Util.minutesSeconds(0));
+						rightLabel.setText(Util.minutesSeconds(duration));
+						settingPosition = true;
+						positionSlider.setValue(0);
+						String s = track.getTitle();
+						// TODO: Make configurable in case some users use something other than "orchestra" (eg: "artist")
+						String orchestra = track.getTag("orchestra");  
+						if (orchestra != null && orchestra.length() > 0) {
+							s = s + " - " + orchestra;
 						}
-					});
+						trackLabel.setText(s);
+						// Volume and balance are applied in software if the line doesn't support them
+						volumeSlider.setEnabled(true);
+						balanceSlider.setEnabled(true);
+					}
+				});
+			}
+			public void positionChanged(final Track track) {
+				settingPosition = true;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						int duration = track.getDuration();
+						int position = track.getPosition();
+						leftLabel.setText(Util.minutesSeconds(position));
+						rightLabel.setText(Util.minutesSeconds(duration - position));
+						positionSlider.setMinimum(0);
+						positionSlider.setMaximum(track.getDuration());
+						positionSlider.setValue(track.getPosition());
+					}
+				});
+			}
+			public void probed(final Track track) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						// Repaint so that the track's time is shown
+						table.repaint();
+					}
+				});
+			}
+		});
+		trackMap.put(filename, track);
+	}
+
+	// Adds tracks to the end of the main playlist on the event dispatch thread, so that the table shows them while loading continues
+	private void showTracks(final List<Track> tracks) {
+		if (tracks.isEmpty()) {
+			return;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				int first = trackPlaylist.size();
+				trackPlaylist.addAll(tracks);
+				if (displayPlaylist == trackPlaylist) {
+					((AbstractTableModel) table.getModel()).fireTableRowsInserted(first, trackPlaylist.size() - 1);
 				}
-			});
-			trackMap.put(filename, track);
-			currentTrackPlaylist.add(track);
+			}
+		});
+	}
+
+	// Completes the library on the event dispatch thread once all tracks have been loaded and their tags applied:
+	// Sorts the main playlist, fills in the other playlists and enables playing and editing.
+	private void showLibrary(Map<String, List<Track>> contents) {
+		// Note: Need to sort main playlist after loading the tracks AND reading the tags.
+		Collections.sort(trackPlaylist);
+		for (Map.Entry<String, List<Track>> entry: contents.entrySet()) {
+			playlistRegistry.get(entry.getKey()).addAll(entry.getValue());
 		}
-		int number = currentTrackPlaylist.size();
-		Util.stopTimer(start, "Load of " + number + " tracks");
+		tracksChanged();
+		((AbstractTableModel) table.getModel()).fireTableDataChanged();
+		setLoading(false);
+		refresh();
 	}
 
-	// Read tags from the Panda tag file
-	private void readTags() throws IOException, UnsupportedAudioFileException {
+	// Reads tags from the Panda tag file.
+	// Only parses the file, so that it can be done while the tracks are still being loaded.
+	private List<TagEntry> readTags() {
 		Util.log(Level.INFO, "Reading tags...");
-		long start = Util.startTimer();
+		Timings.Phase phase = Timings.begin("readTags");
+		List<TagEntry> entries = new ArrayList<TagEntry>();
 		String filename = Config.PANDA_HOME + "panda.tags";
-		BufferedReader br = null;
-		try {
-			FileInputStream fis = new FileInputStream(filename);
-			br = new BufferedReader(new InputStreamReader(fis));
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename)))) {
 			String line = null;
-			Track track = null;
+			TagEntry entry = null;
 			while (true) {
 				line = br.readLine();
 				if (line == null) {
@@ -422,61 +660,68 @@ public class Panda extends JFrame {
 					continue;
 				}
 				if (line.startsWith("file=")) {
-					filename = line.substring(5);
-					Util.log(Level.FINE, "Reading tags for file: " + filename);
-					track = trackMap.get(filename);
-					if (track == null) {
-						// Tags found for file that doesn't exist
-						Util.log(Level.SEVERE, "File not found for tag entry: " + filename);
-						filenames.add(filename);
-						track = new Track(filename, true);
-						trackMap.put(filename, track);
-						currentTrackPlaylist.add(track);
-					}
+					entry = new TagEntry(line.substring(5));
+					entries.add(entry);
 					continue;
 				}
-				if (track == null) {
+				if (entry == null) {
 					continue;
 				}
 				int index = line.indexOf("=");
 				if (index > 0 && index < line.length() - 2) {
-					String name = line.substring(0, index);
-					String value = line.substring(index + 1);
-					if (name.equals("title")) {
-						track.setTitle(value);
-					} else {
-						// TODO: Buffer tags for file and log them all together...
-						Util.log(Level.FINE, "Setting tag: " + name + "=" + value);
-						track.setTag(name, value);
-					}
+					entry.tags.add(new String[] {line.substring(0, index), line.substring(index + 1)});
 				}
 			}
 		} catch (IOException ioe) {
 			Util.log(Level.WARNING, "Error loading Panda tags from " + filename + ": " + ioe);
 			Util.log(Level.WARNING, "Using default property values.");
-			return;
-		} finally {
-			if (br != null) {
-				br.close();
+		}
+		phase.end("Reading of tags");
+		return entries;
+	}
+
+	// Applies the tags read from the tag file to the loaded tracks
+	private void applyTags(List<TagEntry> entries) {
+		Timings.Phase phase = Timings.begin("tags");
+		List<Track> missing = new ArrayList<Track>();
+		for (TagEntry entry: entries) {
+			String filename = entry.filename;
+			Util.log(Level.FINE, "Reading tags for file: " + filename);
+			Track track = trackMap.get(filename);
+			if (track == null) {
+				// Tags found for file that doesn't exist
+				Util.log(Level.SEVERE, "File not found for tag entry: " + filename);
+				filenames.add(filename);
+				track = new Track(filename, true);
+				trackMap.put(filename, track);
+				missing.add(track);
+			}
+			for (String[] tag: entry.tags) {
+				String name = tag[0];
+				String value = tag[1];
+				if (name.equals("title")) {
+					track.setTitle(value);
+				} else {
+					// TODO: Buffer tags for file and log them all together...
+					Util.log(Level.FINE, "Setting tag: " + name + "=" + value);
+					track.setTag(name, value);
+				}
 			}
 		}
-		Util.stopTimer(start, "Reading of tags");
+		showTracks(missing);
+		phase.end("Applying of tags");
 	}
 
-	// Read playlists from the Panda playlists file
-	private void readPlaylists() throws IOException {
+	// Reads playlists from the Panda playlists file.
+	// Only parses the file, so that it can be done while the tracks are still being loaded.
+	private List<PlaylistEntry> readPlaylists() {
 		Util.log(Level.INFO, "Reading playlists...");
-		// First add the main playlist of all tracks
-		playlistMap.put("Tracks", currentTrackPlaylist);
-		playlists.add("Tracks");
-		long start = Util.startTimer();
+		Timings.Phase phase = Timings.begin("readPlaylists");
+		List<PlaylistEntry> entries = new ArrayList<PlaylistEntry>();
 		String filename = Config.PANDA_HOME + "panda.playlists";
-		BufferedReader br = null;
-		try {
-			FileInputStream fis = new FileInputStream(filename);
-			br = new BufferedReader(new InputStreamReader(fis));
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename)))) {
 			String line = null;
-			List<Track> tracks = null;
+			PlaylistEntry entry = null;
 			while (true) {
 				line = br.readLine();
 				if (line == null) {
@@ -491,46 +736,161 @@ public class Panda extends JFrame {
 				}
 				if (line.startsWith("playlist=")) {
 					int index = line.indexOf("=");
-					String name = line.substring(index + 1);
-					tracks = new ArrayList<Track>();
-					playlistMap.put(name, tracks);
-					playlists.add(name);
-					continue;
-				} else {
-					// Line is name of track - look it up in main list of tracks and add to tracks...
-					Track track = trackMap.get(line);
-					if (track == null) {
-						// Currently this results in a null p[ointer exception in the getValueAt method of PandaTableModel
-						Util.log(Level.SEVERE, "File not found for playlist entry: " + line);
-					} else {
-						tracks.add(track);
-					}
+					entry = new PlaylistEntry(line.substring(index + 1));
+					entries.add(entry);
+				} else if (entry != null) {
+					// Line is name of track
+					entry.filenames.add(line);
 				}
 			}
 		} catch (IOException ioe) {
 			Util.log(Level.WARNING, "Error reading Panda playlists from " + filename + ": " + ioe);
-			return;
-		} finally {
-			if (br != null) {
-				br.close();
-			}
+		}
+		phase.end("Reading of playlists");
+		return entries;
+	}
+
+	// Registers the playlists read from the playlists file (still empty), so that the tree can be built before the tracks are loaded
+	private void registerPlaylists(List<PlaylistEntry> entries) {
+		// First add the main playlist of all tracks
+		playlistRegistry.add("Tracks", trackPlaylist);
+		for (PlaylistEntry entry: entries) {
+			playlistRegistry.add(entry.name, new Playlist());
 		}
 		String historyPlaylistName = "History/" + new Date();
-		playlists.add(historyPlaylistName);
-		playlistMap.put(historyPlaylistName, historyPlaylist);
-		Util.stopTimer(start, "Reading of playlists");
+		playlistRegistry.add(historyPlaylistName, historyPlaylist);
+	}
+
+	// Looks up the tracks of each playlist read from the playlists file in the main list of tracks.
+	// If a playlist was read more than once (ie. it was edited since the file was written) then the last one counts.
+	private Map<String, List<Track>> resolvePlaylists(List<PlaylistEntry> entries) {
+		Timings.Phase phase = Timings.begin("playlists");
+		Map<String, List<Track>> contents = new LinkedHashMap<String, List<Track>>();
+		for (PlaylistEntry entry: entries) {
+			List<Track> tracks = new ArrayList<Track>();
+			contents.put(entry.name, tracks);
+			for (String filename: entry.filenames) {
+				Track track = trackMap.get(filename);
+				if (track == null) {
+					// Currently this results in a null p[ointer exception in the getValueAt method of PandaTableModel
+					Util.log(Level.SEVERE, "File not found for playlist entry: " + filename);
+				} else {
+					tracks.add(track);
+				}
+			}
+		}
+		phase.end("Applying of playlists");
+		return contents;
+	}
+
+	// Adds the playlists that were recorded in the journal since the playlist file was last written,
+	// after the entries read from that file so that they replace them
+	private void readJournalPlaylists(List<String[]> edits, List<PlaylistEntry> playlistEntries) {
+		for (String[] edit: edits) {
+			if (edit[0].equals("playlist") && edit.length >= 2) {
+				PlaylistEntry entry = new PlaylistEntry(edit[1]);
+				entry.filenames.addAll(Arrays.asList(edit).subList(2, edit.length));
+				playlistEntries.add(entry);
+			}
+		}
+	}
+
+	// Adds the titles and tags that were recorded in the journal since the tag file was last written,
+	// after the entries read from that file so that they are applied on top of them
+	private void readJournalTags(List<String[]> edits, List<TagEntry> tagEntries) {
+		for (String[] edit: edits) {
+			if (edit[0].equals("title") && edit.length == 3) {
+				TagEntry entry = new TagEntry(edit[1]);
+				entry.tags.add(new String[] {"title", edit[2]});
+				tagEntries.add(entry);
+			} else if (edit[0].equals("tag") && edit.length >= 3) {
+				TagEntry entry = new TagEntry(edit[1]);
+				entry.tags.add(new String[] {edit[2], edit.length > 3 ? edit[3] : null});
+				tagEntries.add(entry);
+			} else if (!edit[0].equals("playlist")) {
+				Util.log(Level.WARNING, "Invalid journal entry: " + Arrays.toString(edit));
+			}
+		}
+		if (!edits.isEmpty()) {
+			Util.log(Level.INFO, "Replaying " + edits.size() + " journal entries");
+		}
+	}
+
+	// The tags of one file, as read from the tag file
+	private static class TagEntry {
+		String filename;
+		List<String[]> tags = new ArrayList<String[]>(); // Name and value of each tag, in the order read
+
+		TagEntry(String filename) {
+			this.filename = filename;
+		}
+	}
+
+	// One playlist, as read from the playlists file
+	private static class PlaylistEntry {
+		String name;
+		List<String> filenames = new ArrayList<String>();
+
+		PlaylistEntry(String name) {
+			this.name = name;
+		}
+	}
+
+	// Waits for the result of a startup stage
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted during startup", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error during startup", cause);
+		}
+	}
+
+	// Runs a startup stage on the event dispatch thread, and waits for it to finish
+	private static void invokeAndWait(Runnable runnable) throws IOException {
+		try {
+			SwingUtilities.invokeAndWait(runnable);
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted during startup", ie);
+		} catch (InvocationTargetException ite) {
+			Throwable cause = ite.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error during startup", cause);
+		}
 	}
 
 	private void buildUI() {
-		long start = Util.startTimer();
+		Timings.Phase phase = Timings.begin("ui");
 		create();
 		layoutUI();
 		addListeners();
+		// Playing and editing are enabled once the library has been loaded
+		setLoading(true);
 		//setDebugBorders();
-		Util.stopTimer(start, "Building user interface");
+		phase.end("Building user interface");
 	}
 
-	private void create() {
+	// While the library is being loaded the table only shows the tracks loaded so far (which are not yet sorted),
+	// so tracks cannot be selected, edited or played, and quitting is not possible since the library would be saved incomplete
+	private void setLoading(boolean loading) {
+		loaded = !loading;
+		quitMenuItem.setEnabled(!loading);
+		table.setEnabled(!loading);
+		prevButton.setEnabled(!loading);
+		playButton.setEnabled(!loading);
+		nextButton.setEnabled(!loading);
+	}
+
+	// Creates the controls that don't depend on the library, so can be created while the library is still being loaded
+	private void createControls() {
+		Timings.Phase phase = Timings.begin("controls");
 		// Icons
 		// Todo: Setting selected icons doesn't seem to have any effect (I assume it's supposed to be used when focus is obtained?)
 		logoButton.setRolloverIcon(new ImageIcon(Panda.class.getResource("panda-logo-064.png")));
@@ -552,7 +912,7 @@ public class Panda extends JFrame {
 		volumeSlider.setMinimum(0);
 		volumeSlider.setMaximum(20);
 		volumeSlider.setValue(14);
-		// Volume and Balance controls are disabled by default
+		// Volume and Balance controls are disabled until the first track starts playing
 		volumeSlider.setEnabled(false);
 		balanceSlider.setEnabled(false);
 		// Preset values
@@ -579,12 +939,13 @@ public class Panda extends JFrame {
 		//showNextTrackButton.setToolTipText("Next Track");
 		//showNextCortinaButton.setToolTipText("Next Cortina");
 		//showNextTandaButton.setToolTipText("Next Tanda");
+		phase.end("Creating controls");
+	}
 
-		DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode("Root");
-		for (String playlist : playlists) {
-			// Traverse the tree, from root down, looking for node where to add the new node, creating parent nodes along the way as necessary.
-			createNodesForPath(rootNode, playlist);
-		}
+	// Creates the tree of playlists and the table of tracks
+	private void create() {
+		// Nodes are only created as folders are expanded
+		PlaylistNode rootNode = new PlaylistNode(playlistRegistry.getNames());
 		tree = new JTree(rootNode);
 		tree.setRootVisible(false);
 		tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
@@ -602,75 +963,9 @@ public class Panda extends JFrame {
 		//table.getColumnModel().getColumn(1).setPreferredWidth(100);
 	}
 
-	// Recursive method to create nodes that represent the path from the specified node down
-	private void createNodesForPath(DefaultMutableTreeNode node, String path) {
-		int index = path.indexOf("/");
-		if (index < 0) {
-			// Path represents a leaf node 
-			// TODO: Check first if it already exists?
-			DefaultMutableTreeNode tn = new DefaultMutableTreeNode(path);
-			node.add(tn);
-		} else {
-			String name = path.substring(0, index);
-			// Find node that represents the first node in the path
-			// If not found, then create one and add it to the node
-			// Then call the method recursively with remainder of path
-			DefaultMutableTreeNode tn = null;
-			for (int i = 0; i < node.getChildCount(); i++) {
-				DefaultMutableTreeNode n = (DefaultMutableTreeNode) node.getChildAt(i);
-				String s = (String) n.getUserObject();
-				if (s.equals(name)) {
-					tn = n;
-					break;
-				}
-			}
-			if (tn == null) {
-				tn = new DefaultMutableTreeNode(name);
-				node.add(tn);
-			}
-			path = path.substring(index + 1);
-			createNodesForPath(tn, path);
-		}
-	}
-
-	private int getIndexForPath(String path) {
-		TreeModel treeModel = tree.getModel();
-		DefaultMutableTreeNode tn = (DefaultMutableTreeNode) treeModel.getRoot();
-		String string = "";
-		for (int i = 0; ; i++) {
-			// Note: need to start with first node after root, since root node is not displayed.
-			tn = tn.getNextNode();
-			if (tn == null) {
-				break;
-			}
-			String s = (String) tn.getUserObject();
-			//String str = string + (i == 0 ? "" : "/") + s;
-			String str = string;
-			if (str.length() > 0) {
-				str = str + "/";
-			}
-			str = str + s;
-			if (str.equals(path)) {
-				return i;
-			}
-			if (path.startsWith(str)) {
-				string = str;
-			}
-		}
-		return -1;
-	}
-
-	// Find the playlist value in the map, and return the name (which is the key)
+	// Returns the name of the playlist (which is the path to its node in the tree)
 	String findPlaylistName(List<Track> playlist) {
-		Set set = playlistMap.keySet();
-		Iterator it = set.iterator();
-		while (it.hasNext()) {
-			String key = (String) it.next();
-			if (playlist == playlistMap.get(key)) {
-				return key;
-			}
-		}
-		return null;
+		return playlistRegistry.getName(playlist);
 	}
 
 	// Returns the configured number of the column
@@ -828,7 +1123,10 @@ public class Panda extends JFrame {
 		JPanel leftPanel = new JPanel(new BorderLayout());
 		JScrollPane treeScrollPane = new JScrollPane(tree);
 		leftPanel.add(treeScrollPane);
-		leftPanel.add(buttonPanel, BorderLayout.SOUTH);
+		JPanel facetButtonPanel = new JPanel(new BorderLayout());
+		facetButtonPanel.add(facetPanel);
+		facetButtonPanel.add(buttonPanel, BorderLayout.SOUTH);
+		leftPanel.add(facetButtonPanel, BorderLayout.SOUTH);
 
 		JPanel rightPanel = new JPanel(new BorderLayout());
 		JScrollPane tableScrollPane = new JScrollPane(table);
@@ -1035,7 +1333,7 @@ System.out.println("*** SPACE");
 				currentTrackPlaylist = displayPlaylist;
 				nextTrackPlaylist = displayPlaylist;
 				PandaTableModel model = (PandaTableModel) table.getModel();
-				model.setValueAt(new Boolean(true), row, 0);
+				model.setValueAt(new Boolean(true), modelRow, 0);
 				table.clearSelection();
 				refresh();
 				updateProjector();
@@ -1051,7 +1349,7 @@ System.out.println("*** SPACE");
 				nextTrackPlaylist = displayPlaylist;
 				showNextTrackButton.setEnabled(true);
 				PandaTableModel model = (PandaTableModel) table.getModel();
-				model.setValueAt(new Boolean(true), row, 0);
+				model.setValueAt(new Boolean(true), modelRow, 0);
 				table.clearSelection();
 				refresh();
 				updateProjector();
@@ -1072,7 +1370,7 @@ System.out.println("*** SPACE");
 				nextCortinaPlaylist = displayPlaylist;
 				showNextCortinaButton.setEnabled(true);
 				PandaTableModel model = (PandaTableModel) table.getModel();
-				model.setValueAt(new Boolean(true), row, 0);
+				model.setValueAt(new Boolean(true), modelRow, 0);
 				table.clearSelection();
 				refresh();
 				updateProjector();
@@ -1083,9 +1381,7 @@ System.out.println("*** SPACE");
 				int row = table.getSelectedRow();
 				int modelRow = table.convertRowIndexToModel(row);
 				// If the current track is a cortina, then the next tanda immediately becomes the next track
-				Track track = currentTrackPlaylist.get(currentTrackIndex);
-				String genre = track.getTag("genre");
-				if (genre == null || !Config.projectorGenres.contains(genre)) {
+				if (isCortina(currentTrackIndex, currentTrackPlaylist)) {
 					nextTrackIndex = modelRow;
 					nextTrackPlaylist = displayPlaylist;
 					showNextTrackButton.setEnabled(true);
@@ -1095,7 +1391,7 @@ System.out.println("*** SPACE");
 					showNextTandaButton.setEnabled(true);
 				}
 				PandaTableModel model = (PandaTableModel) table.getModel();
-				model.setValueAt(new Boolean(true), row, 0);
+				model.setValueAt(new Boolean(true), modelRow, 0);
 				table.clearSelection();
 				refresh();
 				updateProjector();
@@ -1353,21 +1649,9 @@ System.out.println("*** SPACE");
 					table.setModel(new PandaTableModel(Panda.this.displayPlaylist));
 					return;
 				}
-				String playlist = (String) node.getUserObject();
-				while (true) {
-					node = (DefaultMutableTreeNode) node.getParent();
-					if (node == null) {
-						break;
-					}
-					//playlist = (String) node.getUserObject() + "/" + playlist;
-					String s = (String) node.getUserObject();
-					if (s.equals("Root")) {
-						break;
-					}
-					playlist = s + "/" + playlist;
-				}
+				String playlist = ((PlaylistNode) node).getPlaylist();
 				Util.log(Level.FINE, "TreeSelectionListener.valueChanged: Selected playlist = " + playlist);	
-				Panda.this.displayPlaylist = playlistMap.get(playlist);
+				Panda.this.displayPlaylist = playlistRegistry.get(playlist);
 				table.setModel(new PandaTableModel(Panda.this.displayPlaylist));
 				refresh();
 			}
@@ -1396,7 +1680,13 @@ System.out.println("*** SPACE");
 			return;
 		}
 		filter = text;
-		refresh();
+		SearchIndex.Query query = SearchIndex.compile(filter, filterCheckbox.isSelected());
+		if (filter.length() == 0 || query == null) {
+			refresh();
+			return;
+		}
+		// Matched in the background, so that typing is never held up by filtering
+		filterThread.filter((PandaTableModel) table.getModel(), query, getSearchColumns(), getFacetIds());
 	}
 
 	private void showCurrentTrack() {
@@ -1451,49 +1741,30 @@ System.out.println("*** SPACE");
 		rectangle.setLocation(rectangle.x - point.x, rectangle.y - point.y);
 		viewport.scrollRectToVisible(rectangle);
 
-		// Ensure that the displayed playlist is selected in the tree
-		// First obtain path for display playlist
-		String path = null;
-		Set set = playlistMap.keySet();
-		Iterator it = set.iterator();
-		while (it.hasNext()) {
-			String key = (String) it.next();
-			List<Track> playlist = playlistMap.get(key);
-			if (playlist == displayPlaylist) {
-				path = key;
-			}
-		}
-		if (path != null) {
-			// Then obtain the index and select that row in the tree
-			index = getIndexForPath(path);
-			Util.log(Level.FINE, "dispatchKeyEvent: path=" + path + ", index=" + index);
-			if (index >= 0) {
-				// Need to make sure that all nodes in the path are expanded
-				for (int i = 0; i <= index; i++) {
-					tree.expandRow(i);
+		// Ensure that the displayed playlist is selected in the tree (expanding only the nodes above it)
+		String name = findPlaylistName(displayPlaylist);
+		TreePath treePath = null;
+		if (name != null) {
+			treePath = playlistRegistry.getTreePath(name);
+			if (treePath == null) {
+				// The folders above the playlist may not have been loaded yet, so the path is found (and remembered) the first time
+				treePath = ((PlaylistNode) tree.getModel().getRoot()).findPlaylist(name);
+				if (treePath != null) {
+					playlistRegistry.setTreePath(name, treePath);
 				}
-				// TODO: Somehow avoid expanding nodes that aren't relevant
-				//       ie. expand backwards until we reach the top level, then stop.
-				//       I thought this would work, but the index doesn't correspond if there are collapsed nodes above...
-				//TreePath treePath = tree.getPathForRow(index);
-				//tree.expandPath(treePath);
-				tree.setSelectionRow(index);
-				tree.scrollRowToVisible(index);
 			}
 		}
+		Util.log(Level.FINE, "displayTrack: name=" + name + ", treePath=" + treePath);
+		if (treePath != null) {
+			tree.setSelectionPath(treePath);
+			tree.scrollPathToVisible(treePath);
+		}
 	}
 
 	// Returns the index of the first checked track that follows the specified index in the specified playlist
 	// If no checked track is found, return -1
 	private int findNextCheckedTrackIndex(int index, List<Track> playlist) {
-		int next = -1;
-		for (int i = index + 1; i < playlist.size(); i++) {
-			Track track = playlist.get(i);
-			if (track.isChecked() && !track.isMissing()) {
-				next = i;
-				break;
-			}
-		}
+		int next = getTandaIndex(playlist).getNextChecked(index);
 		Util.log(Level.FINE, "findNextCheckedTrackIndex: index=" + index + ", next=" + next);
 		return next;
 	}
@@ -1504,21 +1775,19 @@ System.out.println("*** SPACE");
 		if (index <= 0 || index >= playlist.size()) {
 			return false;
 		}
-		Track track = playlist.get(index);
-		String genre = track.getTag("genre");
-		if (genre == null || !Config.projectorGenres.contains(genre)) {
+		TandaIndex tandaIndex = getTandaIndex(playlist);
+		String genre = tandaIndex.getGenre(index);
+		if (genre == null) {
 			return false;
 		}
-		Track previousTrack = playlist.get(index - 1);
-		String previousGenre = previousTrack.getTag("genre");
+		String previousGenre = tandaIndex.getGenre(index - 1);
 		if (!genre.equals(previousGenre)) {
 			return false;
 		}
 		if (nextTrackPlaylist == null || nextTrackIndex < 0) {
 			return true;
 		}
-		Track nextTrack = nextTrackPlaylist.get(nextTrackIndex);
-		String nextGenre = nextTrack.getTag("genre");
+		String nextGenre = getTandaIndex(nextTrackPlaylist).getGenre(nextTrackIndex);
 		if (!genre.equals(nextGenre)) {
 			return true;
 		}
@@ -1528,18 +1797,64 @@ System.out.println("*** SPACE");
 
 	// Returns true if the specified track does not have a genre that is one of the "projector" genres.
 	private boolean isCortina(int index, List<Track> playlist) {
-		if (index < 0 || index >= playlist.size()) {
-			return true;
+		return getTandaIndex(playlist).isCortina(index);
+	}
+
+	// Returns the tanda index of the playlist, which is created the first time it is needed
+	private TandaIndex getTandaIndex(List<Track> playlist) {
+		synchronized (tandaIndexes) {
+			TandaIndex tandaIndex = tandaIndexes.get(playlist);
+			if (tandaIndex == null) {
+				tandaIndex = new TandaIndex(playlist);
+				tandaIndexes.put(playlist, tandaIndex);
+			}
+			return tandaIndex;
 		}
+	}
+
+	// Invoked when the track at the specified index of the playlist has been checked, unchecked or edited.
+	// The same track may also be in other playlists, whose indexes are updated at each of its entries.
+	// Playlists that don't contain the track are left alone, so their indexes don't have to be rebuilt.
+	private void trackChanged(List<Track> playlist, int index) {
 		Track track = playlist.get(index);
-		String genre = track.getTag("genre");
-		if (genre == null) {
-			return true;
+		synchronized (tandaIndexes) {
+			for (Map.Entry<List<Track>, TandaIndex> entry: tandaIndexes.entrySet()) {
+				List<Track> list = entry.getKey();
+				TandaIndex tandaIndex = entry.getValue();
+				if (list == playlist) {
+					tandaIndex.changed(index);
+				} else if (!(list instanceof Playlist)) {
+					// Without a reverse index the track would have to be searched for, so rather rebuild when next used
+					tandaIndex.invalidate();
+				} else if (((Playlist) list).contains(track)) {
+					for (int i: getIndexes((Playlist) list, track)) {
+						tandaIndex.changed(i);
+					}
+				}
+			}
 		}
-		if (Config.projectorGenres.contains(genre)) {
-			return false;
+	}
+
+	// Returns the current indexes of all the entries of the track in the playlist
+	private static int[] getIndexes(Playlist playlist, Track track) {
+		// Locked so that the entries aren't renumbered while their indexes are read
+		synchronized (playlist) {
+			List<Playlist.Entry> entries = playlist.getEntries(track);
+			int[] indexes = new int[entries.size()];
+			for (int i = 0; i < indexes.length; i++) {
+				indexes[i] = entries.get(i).getIndex();
+			}
+			return indexes;
+		}
+	}
+
+	// Invoked when tracks have changed in ways that may affect any playlist (eg. when files go missing)
+	private void tracksChanged() {
+		synchronized (tandaIndexes) {
+			for (TandaIndex tandaIndex: tandaIndexes.values()) {
+				tandaIndex.invalidate();
+			}
 		}
-		return true;
 	}
 
 	// Returns the first checked track that precedes the specified index in the *current* playlist
@@ -1570,17 +1885,14 @@ System.out.println("*** SPACE");
 		}
 		boolean useDefaults = true;
 		Track track = currentTrackPlaylist.get(currentTrackIndex);
-		String genre = track.getTag("genre");
-		if (genre == null) {
-			genre = "unknown";
-		}
-		if (!Player.isPaused() && Config.projectorGenres.contains(genre)) {
+		boolean cortina = isCortina(currentTrackIndex, currentTrackPlaylist);
+		if (!Player.isPaused() && !cortina) {
 			// Only display track info if current track is actually playing one of the configured genres
 			useDefaults = false;
 		}
 		if (useDefaults) {
 			projector.setDefaults();
-			if (!Config.projectorGenres.contains(genre)) {
+			if (cortina) {
 				projector.setFooter(nextTanda());
 			}
 			return;
@@ -1594,32 +1906,27 @@ System.out.println("*** SPACE");
 		projector.setImage("orchestra/" + header + ".jpg");
 		String year = track.getTag("year");
 		projector.setText(track.getTitle(), year);
-		projector.setDefaultFooter();
+		// Indicate which track of the tanda is playing, eg. "2 of 4"
+		TandaIndex tandaIndex = getTandaIndex(currentTrackPlaylist);
+		TandaIndex.Segment tanda = tandaIndex.getSegment(currentTrackIndex);
+		if (tanda != null && tanda.getCount() > 1) {
+			projector.setFooter(tandaIndex.getPosition(currentTrackIndex) + " of " + tanda.getCount());
+		} else {
+			projector.setDefaultFooter();
+		}
 		projector.repaint();
 	}
 
 	// Determine the genre and orchestra of the next tanda.
-	// ie. the set of 3 or more checked tracks that follow a checked cortina
-	// and all belong to the same, configured genre.
+	// ie. the first tanda (run of checked tracks of the same, configured genre) that follows a checked cortina.
 	// Note that any track that isn't one of the configured genres is considered as a cortina
-	// TODO: Also indicate if current track is number x out of n tracks in the tanda...
 	private String nextTanda() {
 		String string = "";
 		if (nextTrackIndex < 0) {
 			return string;
 		}
-		boolean cortinaFound = false;
-		String currentGenre = "";
-		if (currentTrackPlaylist != null && currentTrackIndex >= 0) {
-			Track track = currentTrackPlaylist.get(currentTrackIndex);
-			String g = track.getTag("genre");
-			if (g != null) {
-				currentGenre = g;
-			}
-		}
-		if (!Config.projectorGenres.contains(currentGenre)) {
-			cortinaFound = true;
-		}
+		// If the current track is a cortina, then the next tanda may start right away
+		boolean cortinaFound = currentTrackPlaylist == null || isCortina(currentTrackIndex, currentTrackPlaylist);
 		List<Track> playlist = nextTrackPlaylist;
 		if (playlist == null) {
 			playlist = currentTrackPlaylist;
@@ -1627,53 +1934,13 @@ System.out.println("*** SPACE");
 				return string;
 			}
 		}
-		int count = 0;
-		String genre = null;
-		String orchestra = null;
-		for (int i = nextTrackIndex; i < playlist.size(); i++) {
-			Track track = playlist.get(i);
-			if (!track.isChecked()) {
-				// Skip over any unchecked tracks
-				continue;
-			}
-			String g = track.getTag("genre");
-			if (g == null) {
-				continue;
-			}
-			if (!Config.projectorGenres.contains(g)) {
-				cortinaFound = true;
-				continue;
-			}
-			if (!cortinaFound) {
-				// Don't bother with anything else until a cortina is found
-				continue;
-			}
-			// A cortina has been found, so the next 3 tracks must all be of the same (configured) genre...
-			if (!Config.projectorGenres.contains(g)) {
-				genre = null;
-				break;
-			}
-			if (genre == null) {
-				genre = g;
-				count = 1;
-				continue;
-			}
-			if (!g.equals(genre)) {
-				genre = null;
-				break;
-			}
-			String o = track.getTag("orchestra");
-			if (o == null || orchestra != null && !o.equals(orchestra)) {
-				orchestra = "Mixed";
-			} else {
-				orchestra = o;
-			}
-			count++;
-			if (count >= 3) {
-				break;
-			}
+		TandaIndex.Segment tanda = getTandaIndex(playlist).findNextTanda(nextTrackIndex, cortinaFound);
+		if (tanda == null) {
+			return string;
 		}
-		if (genre != null && genre.length() > 0 && orchestra != null && orchestra.length() > 0) {
+		String genre = tanda.getGenre();
+		String orchestra = tanda.getOrchestra();
+		if (orchestra != null && orchestra.length() > 0) {
 			String s = Config.projectorOrchestras.get(orchestra);
 			if (s != null) {
 				orchestra = s;
@@ -1685,36 +1952,86 @@ System.out.println("*** SPACE");
 		return string;
 	}
 
+	// Returns the value that the table displays for the track in the specified column.
+	// Unless specified, the value is returned as it is known, without probing the track (lazy mode).
+	private Object getColumnValue(Track track, int col, boolean probe) {
+		if (col == 0) {
+			// Special column
+			if (track.isMissing()) {
+				return Boolean.valueOf(false);
+			} else {
+				return Boolean.valueOf(track.isChecked());
+			}
+		}
+		String name = ((PandaTableColumnModel) tableColumnModel).getColumnName(col);
+		return getColumnValue(track, name, probe);
+	}
+
+	// Returns the value that the table displays for the track in the column with the specified name (other than the special first column).
+	// Doesn't use the column model, so can be invoked on any thread.
+	private Object getColumnValue(Track track, String name, boolean probe) {
+		Object object = null;
+		if (name.equals("Title")) {
+			object = track.getTitle(); 
+		} else if (name.equals("Time")) {
+			int duration = probe ? track.getDuration() : track.getKnownDuration();
+			// Blank until the track has been probed (lazy mode)
+			object = track.isProbed() || track.isMissing() ? Util.minutesSeconds(duration) : "";
+			// TODO: Work out how to make it numeric while still displaying string value...
+		} else {
+			// The value for this column is contained in a tag
+			object = track.getTag(getTagName(name)); 
+		}
+		return object;
+	}
+
+	// Returns the names of the searchable columns, ie. all columns except the special first column.
+	// Must be invoked on the event dispatch thread, since columns can be added, removed or moved.
+	// The same array is returned for as long as the columns don't change, so that searchable values remain cached.
+	private String[] getSearchColumns() {
+		String[] names = new String[tableColumnModel.getColumnCount() - 1];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = ((PandaTableColumnModel) tableColumnModel).getColumnName(i + 1);
+		}
+		if (!Arrays.equals(names, searchColumns)) {
+			searchColumns = names;
+		}
+		return searchColumns;
+	}
+
+	// Returns the name of the tag that holds the values of the specified column
+	private String getTagName(String columnName) {
+		String tagName = columnName.toLowerCase();
+		int number = getColumnNumber(columnName);
+		if (number >= 1) {
+			Config.Column column = Config.columns.get(number);
+			if (column.tag != null) {
+				tagName = column.tag;
+			}
+		}
+		return tagName;
+	}
+
+	// Returns the ids of the tracks that match the facets selected in the facet panel, or null if none are selected
+	private BitSet getFacetIds() {
+		TagIndex.Query query = facetPanel.getQuery();
+		return query.isEmpty() ? null : query.evaluate();
+	}
+
 	private void refresh() {
-		if (filter != null && filter.length() > 0) {
-			filter = Util.replaceSpecialChars(filter);
-			TableModel tableModel = table.getModel();
-			TableRowSorter<TableModel> sorter = new TableRowSorter<TableModel>(tableModel);
-			RowFilter<Object, Object> rowFilter = new RowFilter<Object, Object>() {
-				public boolean include(Entry<? extends Object, ? extends Object> entry) {
-					Pattern pattern = null;
-					int flags = Pattern.CANON_EQ;  // Doesn't work as expected, so use replaceSpecialChars
-					if (!filterCheckbox.isSelected()) {
-						flags = flags | Pattern.CASE_INSENSITIVE;
-					}
-					try {
-						pattern = Pattern.compile(filter, flags);
-					} catch (PatternSyntaxException pse) {
-						return false;
-					}
-					for (int i = 0; i <= entry.getValueCount() - 1; i++) {
-						String value = entry.getStringValue(i);
-						value = Util.replaceSpecialChars(value);
-						Matcher matcher = pattern.matcher(value);
-						if (matcher.find()) {
-							return true;
-						}
-					}
-					return false;
-				}
-			};
-			sorter.setRowFilter(rowFilter);
-			table.setRowSorter(sorter);
+		// Any filtering still in progress in the background is superseded by this refresh
+		filterThread.cancel();
+		boolean filtered = filter != null && filter.length() > 0;
+		BitSet ids = getFacetIds();
+		if (filtered || ids != null) {
+			PandaTableModel tableModel = (PandaTableModel) table.getModel();
+			SearchIndex.Query query = filtered ? SearchIndex.compile(filter, filterCheckbox.isSelected()) : null;
+			if (filtered && query == null) {
+				// Invalid regular expression, so nothing matches
+				setRowFilter(tableModel, new BitSet());
+			} else {
+				setRowFilter(tableModel, match(tableModel.getTracks(), query, getSearchColumns(), ids, null));
+			}
 		} else {
 			// Turn sorting off
 			table.setRowSorter(null);
@@ -1724,6 +2041,36 @@ System.out.println("*** SPACE");
 		table.repaint();
 	}
 
+	// Returns the rows of the tracks that match the query (if any) in the specified columns and whose ids are included (if specified),
+	// or null if the specified filter thread has moved on to another filter in the meantime.
+	private BitSet match(List<Track> tracks, SearchIndex.Query query, String[] columns, BitSet ids, FilterThread.Request request) {
+		BitSet rows = new BitSet(tracks.size());
+		for (int i = 0; i < tracks.size(); i++) {
+			if (request != null && i % 1024 == 0 && !filterThread.isCurrent(request)) {
+				return null;
+			}
+			Track track = tracks.get(i);
+			if (ids != null && !ids.get(track.getId())) {
+				continue;
+			}
+			if (query == null || searchIndex.matches(track, query, columns)) {
+				rows.set(i);
+			}
+		}
+		return rows;
+	}
+
+	// Filters the table down to the specified rows, in one go
+	private void setRowFilter(PandaTableModel tableModel, final BitSet rows) {
+		TableRowSorter<TableModel> sorter = new TableRowSorter<TableModel>(tableModel);
+		sorter.setRowFilter(new RowFilter<Object, Object>() {
+			public boolean include(Entry<? extends Object, ? extends Object> entry) {
+				return rows.get((Integer) entry.getIdentifier());
+			}
+		});
+		table.setRowSorter(sorter);
+	}
+
 	private void quit() {
 		int n = JOptionPane.showConfirmDialog(Panda.this, "Really quit?", "Panda", JOptionPane.YES_NO_OPTION);
 		if (n == JOptionPane.YES_OPTION) {
@@ -1734,6 +2081,9 @@ System.out.println("*** SPACE");
 	}
 
 	class SaveThread extends Thread {
+		private static final int JOURNAL_INTERVAL = 60 * 1000;
+		private static final int SAVE_INTERVAL = 10 * 60 * 1000;
+
 		public SaveThread() {
 			setDaemon(true);
 			setPriority(Thread.MIN_PRIORITY);
@@ -1741,26 +2091,54 @@ System.out.println("*** SPACE");
 
 		public void run() {
 			Util.log(Level.INFO, "Starting save thread...");
+			// The configuration doesn't change while running, so it is only saved (and backed up) at startup
+			saveConfig();
+			long saved = 0;
 			while (true) {
-				// Save every 10 minutes, starting immediately (so we have backups from the start)
-				save();
-				Util.pause(10 * 60 * 1000);
+				// Edits are appended to the journal every minute, which only writes a few lines.
+				// The tag and playlist files are rewritten every 10 minutes, but only if anything has changed since they were last written.
+				// The first save is immediate, so that edits replayed from the journal at startup are written to the files.
+				long now = System.currentTimeMillis();
+				if (now - saved >= SAVE_INTERVAL) {
+					save();
+					saved = now;
+				} else {
+					Journal.flush(playlistRegistry);
+				}
+				Util.pause(JOURNAL_INTERVAL);
 			}
 		}
 	}
 
-	// Save playlists and tags (including backup copies)
-	private void save() {
-		Util.log(Level.FINE, "Saving...");
-		DateFormat df = new SimpleDateFormat("yyyyMMdd.HHmmss");
-		String timestamp = df.format(new Date());
+	// Save playlists and tags (including backup copies), if anything has changed since they were last saved
+	private synchronized void save() {
+		if (!loaded) {
+			Util.log(Level.WARNING, "Not saving, since the library has not been loaded yet");
+			return;
+		}
 		try {
-			savePlaylists(timestamp);
-			saveTags(timestamp);
-			saveConfig(timestamp);
+			if (Journal.begin(playlistRegistry)) {
+				Util.log(Level.FINE, "Saving...");
+				DateFormat df = new SimpleDateFormat("yyyyMMdd.HHmmss");
+				String timestamp = df.format(new Date());
+				try {
+					savePlaylists(timestamp);
+					saveTags(timestamp);
+				} catch (IOException ioe) {
+					Journal.abort();
+					throw ioe;
+				}
+				// Both files have been replaced, so the edits in the journal are no longer needed
+				Journal.commit();
+			} else {
+				Util.log(Level.FINE, "Nothing to save");
+			}
 		} catch (IOException ioe) {
 			Util.log(Level.SEVERE, "Error saving playlists!" + " (" + ioe.getMessage() + ")");
 		}
+		// Tracks may have been probed since the index was saved (lazy mode).
+		// The index holds the whole library, whichever playlist is playing, so it is saved from a copy of the main playlist.
+		trackIndex.save(trackPlaylist.getTracks());
 	}
 
 	private void savePlaylists(String timestamp) throws IOException {
@@ -1775,22 +2153,31 @@ System.out.println("*** SPACE");
 		saveTags(file, backup);
 	}
 
-	private void saveConfig(String timestamp) throws IOException {
+	private void saveConfig() {
+		DateFormat df = new SimpleDateFormat("yyyyMMdd.HHmmss");
+		String timestamp = df.format(new Date());
 		File file = new File(Config.PANDA_HOME + "panda.config");
 		File backup = new File(Config.PANDA_HOME + "bkp" + File.separator + "panda.config." + timestamp);
-		Config.save(file, backup);
+		try {
+			Config.save(file, backup);
+		} catch (IOException ioe) {
+			Util.log(Level.SEVERE, "Error saving configuration!" + " (" + ioe.getMessage() + ")");
+		}
 	}
 
 	private void savePlaylists(File file, File backup) throws IOException {
 		Util.backup(file, backup, 1);
 		long oldLength = file.length();
-		PrintWriter pw = new PrintWriter(file);
+		// Written to a temporary file which then replaces the file, so that the file is never left half-written
+		File temp = new File(file.getPath() + ".tmp");
+		PrintWriter pw = new PrintWriter(temp);
 		pw.println("#============ Panda playlists ============");
-		for (String playlist : playlists) {
+		for (String playlist : playlistRegistry.getNames()) {
 			if (playlist.equals("Tracks")) {
 				continue;
 			}
-			List<Track> tracks = playlistMap.get(playlist);
+			// A copy, since the playlist may be edited while it is saved (eg. the history, as tracks are played)
+			List<Track> tracks = ((Playlist) playlistRegistry.get(playlist)).getTracks();
 			if (tracks.isEmpty()) {
 				// Don't save empty playlists (multiple restarts can lead to empty history playlists)
 				continue;
@@ -1804,6 +2191,10 @@ System.out.println("*** SPACE");
 			pw.flush();
 		}
 		pw.close();
+		if (pw.checkError()) {
+			throw new IOException("Error writing " + temp);
+		}
+		Util.replace(temp, file);
 		long newLength = file.length();
 		if (oldLength != newLength) {
 			// File has changed since it was last saved, so copy it to the specified backup file
@@ -1814,10 +2205,16 @@ System.out.println("*** SPACE");
 	private void saveTags(File file, File backup) throws IOException {
 		Util.backup(file, backup, 1);
 		long oldLength = file.length();
-		PrintWriter pw = new PrintWriter(file);
+		File temp = new File(file.getPath() + ".tmp");
+		PrintWriter pw = new PrintWriter(temp);
 		pw.println("#============ Panda tags ============");
 		pw.println("");
-		for (String filename : filenames) {
+		// The list of filenames grows if the tracks directory is watched
+		List<String> names;
+		synchronized (filenames) {
+			names = new ArrayList<String>(filenames);
+		}
+		for (String filename : names) {
 			Track track = trackMap.get(filename);
 			String title = track.getTitle();
 			Map<String, String> tags = track.getTags();
@@ -1842,6 +2239,10 @@ System.out.println("*** SPACE");
 			pw.flush();
 		}
 		pw.close();
+		if (pw.checkError()) {
+			throw new IOException("Error writing " + temp);
+		}
+		Util.replace(temp, file);
 		long newLength = file.length();
 		if (oldLength != newLength) {
 			// File has changed since it was last saved, so copy it to the specified backup file
@@ -1938,6 +2339,8 @@ System.out.println("*** SPACE");
 					nextTandaIndex = -1;
 					showNextTandaButton.setEnabled(false);
 				}
+				// The next track is now known, so it can be prepared while the current track plays
+				prepareThread.wake();
 				Track track = currentTrackPlaylist.get(currentTrackIndex);
 				historyPlaylist.add(track);
 				// Current and next tracks must be highlighted in UI, and history playlist must show current track
@@ -1948,13 +2351,14 @@ System.out.println("*** SPACE");
 				});
 				updateProjector();
 				try {
-					// Ensure volume is restored to user-specified value in case previous track was faded out
+					// Ensure the track starts at the user-specified volume
 					Player.setVolume(volumeSlider.getValue());
 					track.play();
 					// Wait specified number of seconds before starting the next track
 					// But only if the end of the track has been reached during play.
 					// ie. not if the "Next" button or "Play Now" menu has been clicked.
-					if (Config.wait > 0 && track.getDuration() == track.getPosition()) {
+					// Never wait after a crossfade, since the next track is already playing.
+					if (Config.wait > 0 && track.getDuration() == track.getPosition() && !track.isCrossfaded()) {
 						Util.pause(1000 * Config.wait);
 					}
 					if (proceed) {
@@ -2022,6 +2426,290 @@ System.out.println("*** SPACE");
 		}
 	}
 
+	// Returns the track that will be played after the current one, or null if there is none
+	private Track getNextTrack() {
+		List<Track> playlist = nextTrackPlaylist;
+		int index = nextTrackIndex;
+		if (currentTrackIndex < 0 || playlist == null || index < 0 || index >= playlist.size()) {
+			return null;
+		}
+		return playlist.get(index);
+	}
+
+	// Watches the tracks directory (and its subdirectories) for track files being added or removed while running.
+	// New files are only probed once nothing has been written to them for a while, since they may still be busy being copied.
+	// The library itself is only updated on the event dispatch thread.
+	class WatchThread extends Thread {
+		private static final long QUIET_MILLIS = 2000;
+		private WatchService watchService;
+		private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+		private Map<String, Long> pending = new HashMap<String, Long>(); // Filenames of new files, with the time of the last event for each
+
+		public WatchThread() throws IOException {
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+			watchService = FileSystems.getDefault().newWatchService();
+		}
+
+		void register(Path dir) throws IOException {
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(key, dir);
+		}
+
+		public void run() {
+			Util.log(Level.INFO, "Starting watch thread...");
+			while (true) {
+				WatchKey key = null;
+				try {
+					key = watchService.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				if (key != null) {
+					handle(key);
+				}
+				addPending();
+			}
+		}
+
+		private void handle(WatchKey key) {
+			Path dir = keys.get(key);
+			for (WatchEvent<?> event: key.pollEvents()) {
+				WatchEvent.Kind<?> kind = event.kind();
+				if (kind == StandardWatchEventKinds.OVERFLOW) {
+					Util.log(Level.WARNING, "Missed changes to tracks directory " + dir + " (restart to pick them up)");
+					continue;
+				}
+				Path path = dir.resolve((Path) event.context());
+				if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+					// A new directory may already contain files by the time it is registered
+					List<String> found = new ArrayList<String>();
+					try {
+						scanDir(path, found, this);
+					} catch (IOException ioe) {
+						Util.log(Level.WARNING, "Cannot scan " + path + ": " + ioe);
+					}
+					for (String filename: found) {
+						pending.put(filename, System.currentTimeMillis());
+					}
+				} else if (isTrackFile(path)) {
+					final String filename = getFilename(path);
+					if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+						pending.remove(filename);
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								removeWatchedTrack(filename);
+							}
+						});
+					} else {
+						pending.put(filename, System.currentTimeMillis());
+					}
+				}
+			}
+			if (!key.reset()) {
+				// Directory no longer exists
+				keys.remove(key);
+			}
+		}
+
+		private void addPending() {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Long> entry = it.next();
+				if (now - entry.getValue() < QUIET_MILLIS) {
+					continue;
+				}
+				it.remove();
+				String filename = entry.getKey();
+				try {
+					final Track track = new Track(filename);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							addWatchedTrack(track);
+						}
+					});
+				} catch (IOException ioe) {
+					Util.log(Level.WARNING, "Cannot load new track file " + filename + ": " + ioe);
+				} catch (UnsupportedAudioFileException uafe) {
+					Util.log(Level.WARNING, "Cannot load new track file " + filename + ": " + uafe);
+				}
+			}
+		}
+	}
+
+	// Adds a track file that appeared while running to the end of the main "Tracks" playlist, whichever playlist is playing
+	// (so that the indexes of the current and next tracks remain valid)
+	private void addWatchedTrack(Track track) {
+		String filename = track.getFilename();
+		Track existing = trackMap.get(filename);
+		if (existing != null) {
+			if (existing.isMissing()) {
+				// Removed and added again since Panda was started, or missing at startup (in which case its format was never known).
+				// The existing track keeps its title, tags and place in playlists, but takes the format of the file as it is now.
+				Util.log(Level.INFO, "Track file is back: " + filename);
+				existing.setProbed(track);
+				existing.setMissing(false);
+				existing.setChecked(true);
+				tracksChanged();
+				table.repaint();
+			}
+			return;
+		}
+		Util.log(Level.INFO, "Adding new track file: " + filename);
+		synchronized (filenames) {
+			int index = Collections.binarySearch(filenames, filename);
+			filenames.add(-index - 1, filename);
+		}
+		addTrack(track);
+		((AbstractTableModel) table.getModel()).fireTableDataChanged();
+		refresh();
+	}
+
+	private void removeWatchedTrack(String filename) {
+		Track track = trackMap.get(filename);
+		if (track != null && !track.isMissing()) {
+			Util.log(Level.INFO, "Track file was removed: " + filename);
+			track.setMissing(true);
+			tracksChanged();
+			table.repaint();
+		}
+	}
+
+	// Look-ahead stage for gapless playback and crossfades:
+	// Opens and pre-rolls the next track while the current track is playing,
+	// and releases it again if a different track is chosen as the next track.
+	class PrepareThread extends Thread {
+		private Track preparedTrack;
+
+		public PrepareThread() {
+			setDaemon(true);
+		}
+
+		public void run() {
+			Util.log(Level.INFO, "Starting prepare thread...");
+			while (true) {
+				Track track = getNextTrack();
+				Player.setNextTrack(track);
+				if (track != preparedTrack) {
+					if (preparedTrack != null) {
+						preparedTrack.release();
+					}
+					preparedTrack = track;
+				}
+				if (track != null && !track.isMissing() && !track.isPrepared()) {
+					try {
+						track.prepare();
+					} catch (IOException ioe) {
+						Util.log(Level.WARNING, "Error preparing track " + track.getFilename() + ": " + ioe);
+					} catch (UnsupportedAudioFileException uafe) {
+						Util.log(Level.WARNING, "Error preparing track " + track.getFilename() + ": " + uafe);
+					}
+				}
+				synchronized (this) {
+					try {
+						// Check again every second in case the next track has been changed in the UI
+						wait(1000);
+					} catch (InterruptedException ie) {
+					}
+				}
+			}
+		}
+
+		synchronized void wake() {
+			notify();
+		}
+	}
+
+	// Matches the filter against the tracks in the background, and then filters the table on the event dispatch thread.
+	// Typing is debounced: matching only starts once no key has been typed for FILTER_DELAY milliseconds.
+	// A filter that is superseded (by further typing or by a refresh) is abandoned, even if matching has already started.
+	class FilterThread extends Thread {
+		private static final int FILTER_DELAY = 150;
+		private Request request; // The most recent request, which is null once it has been cancelled
+		private Request pending; // Request that is waiting to be matched (if any)
+
+		public FilterThread() {
+			setDaemon(true);
+		}
+
+		// Invoked on the event dispatch thread, which is why the tracks are copied (and the columns are passed in)
+		synchronized void filter(PandaTableModel tableModel, SearchIndex.Query query, String[] columns, BitSet ids) {
+			request = new Request(tableModel, tableModel.getTracks(), query, columns, ids, System.currentTimeMillis() + FILTER_DELAY);
+			pending = request;
+			notify();
+		}
+
+		synchronized void cancel() {
+			request = null;
+			pending = null;
+		}
+
+		synchronized boolean isCurrent(Request request) {
+			return request == this.request;
+		}
+
+		public void run() {
+			Util.log(Level.INFO, "Starting filter thread...");
+			while (true) {
+				final Request next;
+				synchronized (this) {
+					try {
+						while (true) {
+							if (pending == null) {
+								wait();
+								continue;
+							}
+							long delay = pending.due - System.currentTimeMillis();
+							if (delay <= 0) {
+								break;
+							}
+							wait(delay);
+						}
+					} catch (InterruptedException ie) {
+						continue;
+					}
+					next = pending;
+					pending = null;
+				}
+				long start = Util.startTimer();
+				final BitSet rows = match(next.tracks, next.query, next.columns, next.ids, next);
+				if (rows == null) {
+					continue;
+				}
+				Util.log(Level.FINE, "Filtering of " + next.tracks.size() + " tracks took " + (System.currentTimeMillis() - start) + " millseconds");
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						// The table may have moved on to another playlist (which will have been refreshed) in the meantime
+						if (isCurrent(next) && table.getModel() == next.tableModel) {
+							setRowFilter(next.tableModel, rows);
+							tree.repaint();
+							table.repaint();
+						}
+					}
+				});
+			}
+		}
+
+		class Request {
+			private PandaTableModel tableModel;
+			private List<Track> tracks;
+			private SearchIndex.Query query;
+			private String[] columns; // Names of the searchable columns, since the column model may only be used on the event dispatch thread
+			private BitSet ids; // Ids of the tracks that match the selected facets (null if none are selected)
+			private long due; // Time at which matching may start
+
+			private Request(PandaTableModel tableModel, List<Track> tracks, SearchIndex.Query query, String[] columns, BitSet ids, long due) {
+				this.tableModel = tableModel;
+				this.tracks = tracks;
+				this.query = query;
+				this.columns = columns;
+				this.ids = ids;
+				this.due = due;
+			}
+		}
+	}
+
 	class PandaTreeCellRenderer implements TreeCellRenderer {
 		JPanel panel;
 		JLabel label;
@@ -2064,7 +2752,7 @@ System.out.println("*** SPACE");
 				return;
 			}
 			String playlistName = findPlaylistName(playlist);
-			if (playlistName.endsWith(name)) {
+			if (playlistName != null && playlistName.endsWith(name)) {
 				panel.setBackground(color);
 				label.setBackground(color);
 			}
@@ -2164,37 +2852,20 @@ System.out.println("*** SPACE");
 		}
 
 		public Object getValueAt(int row, int col) {
-			Object object = null;
 			Track track = playlist.get(row);
 			// NOTE: If track is null (because the playlist configuration lists a file that cannot be found)
 			//       then it will result in a null pointer exception below...
-			String name = getColumnName(col);
-			if (col == 0) {
-				// Special column
-				if (track.isMissing()) {
-					object = Boolean.valueOf(false);
-				} else {
-					object = Boolean.valueOf(track.isChecked());
-				}
-			} else if (name.equals("Title")) {
-				object = track.getTitle(); 
-			} else if (name.equals("Time")) {
-				int duration = track.getDuration();
-				object = Util.minutesSeconds(duration); 
-				// TODO: Work out how to make it numeric while still displaying string value...
-			} else {
-				// The value for this column is contained in a tag
-				String tagName = name.toLowerCase();
-				int number = getColumnNumber(name);
-				if (number >= 1) {
-					Config.Column column = Config.columns.get(number);
-					if (column.tag != null) {
-						tagName = column.tag;
-					}
-				}
-				object = track.getTag(tagName); 
-			}
-			return object;
+			// Displayed tracks are probed (lazy mode)
+			return getColumnValue(track, col, true);
+		}
+
+		public Track getTrack(int row) {
+			return playlist.get(row);
+		}
+
+		// Returns a copy of the tracks, which can be used on another thread
+		public List<Track> getTracks() {
+			return new ArrayList<Track>(playlist);
 		}
 
 		// Obtains the value of the "Genre" column for specified row
@@ -2237,12 +2908,12 @@ System.out.println("*** SPACE");
 
 		public void setValueAt(Object value, int row, int col) {
 			Util.log(Level.FINE, "PandaTableModel.setValueAt: value=" + value + ", row=" + row + ", col=" + col);
-			// TODO: this is where we need to update the underlying value in the model...
 			Track track = playlist.get(row);
 			if (col == 0) {
 				Boolean bool = (Boolean) value;
 				boolean b = bool.booleanValue();
 				track.setChecked(b);
+				trackChanged(playlist, row);
 				if (!b) {
 					// User unchecked a track
 					if (displayPlaylist == nextTrackPlaylist && row == nextTrackIndex) {
@@ -2268,18 +2939,30 @@ System.out.println("*** SPACE");
 					// User checked a track - if it occurs after the current track
 					// and either there is no next track or the newly checked track 
 					// occurs between the current track and the next track, 
-					// then make it the next track
-					int index = playlist.indexOf(track);
-					int nextIndex = playlist.size();
-					if (nextTrackIndex >= 0) {
-						nextIndex = nextTrackIndex;
-					}
-					if (index > Panda.this.currentTrackIndex && index < nextIndex) {
-						nextTrackIndex = nextIndex;
+					// then make it the next track.
+					// Note that the row identifies this particular occurrence of the track (it may occur more than once).
+					if (playlist == currentTrackPlaylist && nextTrackPlaylist == currentTrackPlaylist) {
+						int nextIndex = playlist.size();
+						if (nextTrackIndex >= 0) {
+							nextIndex = nextTrackIndex;
+						}
+						if (row > Panda.this.currentTrackIndex && row < nextIndex) {
+							nextTrackIndex = row;
+						}
 					}
 				}
 				refresh();
 				updateProjector();
+			} else {
+				// Edited values are applied to the track, so that they are indexed and saved along with all other tags
+				String name = getColumnName(col);
+				String s = value == null ? "" : value.toString();
+				if (name.equals("Title")) {
+					track.setTitle(s);
+				} else {
+					track.setTag(getTagName(name), s);
+				}
+				trackChanged(playlist, row);
 			}
 			// TODO: Do we need to fire the event? What happens if we don't?
 			fireTableCellUpdated(row, col);
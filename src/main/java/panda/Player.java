@@ -24,6 +24,7 @@ import java.util.logging.Level;
 public class Player {
 	// TODO: Make private and add setter...
 	static Track track; // The track that is currently being played
+	private static Track nextTrack; // The track that will be played after the current one (if known)
 	private static boolean stopped;
 	private static boolean paused;
 	private static int volume = 14;
@@ -35,6 +36,14 @@ public class Player {
 		return track;
 	}
 
+	public static Track getNextTrack() {
+		return nextTrack;
+	}
+
+	public static void setNextTrack(Track track) {
+		nextTrack = track;
+	}
+
 	public static boolean isStopped() {
 		return stopped;
 	}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The Playlist class is a list of tracks in which the same track may occur more than once (eg. a cortina).
+// Each occurrence is an entry of its own, which keeps its identity as tracks are added or removed around it.
+// A reverse index maps each track to its entries, so finding where a track occurs doesn't require a scan
+// and a repeated track is never confused with its first occurrence.
+// Additions and removals are reported to the journal, so that edited playlists are saved.
+// The playlist may be edited on one thread (eg. the history, as tracks are played) while being saved on another,
+// so its methods are synchronized and getTracks returns a copy that can be iterated safely.
+class Playlist extends AbstractList<Track> {
+	private List<Entry> entries = new ArrayList<Entry>();
+	private Map<Track, List<Entry>> occurrences = new IdentityHashMap<Track, List<Entry>>();
+
+	Playlist() {
+	}
+
+	public synchronized Track get(int index) {
+		return entries.get(index).track;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized Track set(int index, Track track) {
+		Entry entry = entries.get(index);
+		Track old = entry.track;
+		unindex(entry);
+		entry.index = -1;
+		entry = new Entry(track, index);
+		entries.set(index, entry);
+		index(entry);
+		Journal.changed(this);
+		return old;
+	}
+
+	public synchronized void add(int index, Track track) {
+		Entry entry = new Entry(track, index);
+		entries.add(index, entry);
+		index(entry);
+		renumber(index + 1);
+		modCount++;
+		Journal.changed(this);
+	}
+
+	public synchronized Track remove(int index) {
+		Entry entry = entries.remove(index);
+		unindex(entry);
+		entry.index = -1;
+		renumber(index);
+		modCount++;
+		Journal.changed(this);
+		return entry.track;
+	}
+
+	// Returns the index of the first occurrence of the track, without scanning the playlist
+	public synchronized int indexOf(Object object) {
+		List<Entry> list = occurrences.get(object);
+		return list == null ? -1 : first(list).index;
+	}
+
+	public synchronized int lastIndexOf(Object object) {
+		List<Entry> list = occurrences.get(object);
+		return list == null ? -1 : last(list).index;
+	}
+
+	public synchronized boolean contains(Object object) {
+		return occurrences.containsKey(object);
+	}
+
+	// Returns a copy of the tracks, which can be iterated while the playlist is being edited on other threads
+	synchronized List<Track> getTracks() {
+		List<Track> tracks = new ArrayList<Track>(entries.size());
+		for (Entry entry: entries) {
+			tracks.add(entry.track);
+		}
+		return tracks;
+	}
+
+	// Returns a copy of all the entries of the track (in no particular order), which is empty if it isn't in the playlist.
+	// The index of an entry changes as tracks are added or removed before it, so hold the lock of the playlist while using them.
+	synchronized List<Entry> getEntries(Track track) {
+		List<Entry> list = occurrences.get(track);
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<Entry>(list);
+	}
+
+	private void index(Entry entry) {
+		List<Entry> list = occurrences.get(entry.track);
+		if (list == null) {
+			// Most tracks occur only once
+			list = new ArrayList<Entry>(1);
+			occurrences.put(entry.track, list);
+		}
+		list.add(entry);
+	}
+
+	private void unindex(Entry entry) {
+		List<Entry> list = occurrences.get(entry.track);
+		list.remove(entry);
+		if (list.isEmpty()) {
+			occurrences.remove(entry.track);
+		}
+	}
+
+	// Updates the indexes of the entries from the specified index onwards (nothing to do when appending)
+	private void renumber(int from) {
+		for (int i = from; i < entries.size(); i++) {
+			entries.get(i).index = i;
+		}
+	}
+
+	private static Entry first(List<Entry> list) {
+		Entry first = list.get(0);
+		for (Entry entry: list) {
+			if (entry.index < first.index) {
+				first = entry;
+			}
+		}
+		return first;
+	}
+
+	private static Entry last(List<Entry> list) {
+		Entry last = list.get(0);
+		for (Entry entry: list) {
+			if (entry.index > last.index) {
+				last = entry;
+			}
+		}
+		return last;
+	}
+
+	// An occurrence of a track in the playlist
+	static class Entry {
+		private Track track;
+		private int index; // Current position in the playlist, or -1 once removed
+
+		private Entry(Track track, int index) {
+			this.track = track;
+			this.index = index;
+		}
+
+		int getIndex() {
+			return index;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+// The PlaylistNode class represents either a playlist (a leaf) or a folder of playlists in the tree.
+// A folder only holds the names of the playlists below it until its children are first needed (ie. when it is expanded),
+// at which point it creates a node for each of its own playlists and sub-folders, passing the remaining names on to those sub-folders.
+// So the cost of displaying the tree depends on the part of it that is visible rather than on its total size.
+// The children of a folder are found by name through hash maps, so neither loading nor finding a playlist scans its siblings.
+class PlaylistNode extends DefaultMutableTreeNode {
+	private String playlist; // Full name of the playlist, or null if this is a folder
+	private String path; // Full name of the folder followed by a slash, eg. "History/" (empty for the root, null for a playlist)
+	private List<String> pending = new ArrayList<String>(); // Full names of the playlists below the folder (folders only, null once loaded)
+	private Map<String, PlaylistNode> folders; // Sub-folders by name (once loaded)
+	private Map<String, PlaylistNode> playlists; // Playlists directly in the folder by full name (once loaded)
+
+	// Creates the root folder of the specified playlists (eg. "History/Sat Nov 26 20:15:00 CET 2016").
+	// No other nodes are created until they are needed.
+	PlaylistNode(List<String> playlists) {
+		this("Root", null, "");
+		pending.addAll(playlists);
+	}
+
+	private PlaylistNode(String name, String playlist, String path) {
+		super(name);
+		this.playlist = playlist;
+		this.path = path;
+		if (playlist != null) {
+			pending = null;
+		}
+	}
+
+	// Returns the full name of the playlist, or null if this is a folder
+	String getPlaylist() {
+		return playlist;
+	}
+
+	// Returns the path from this folder to the node of the playlist, or null if the playlist is not in the folder.
+	// Only the folders along the way are loaded.
+	TreePath findPlaylist(String playlist) {
+		if (path == null || !playlist.startsWith(path)) {
+			return null;
+		}
+		List<Object> nodes = new ArrayList<Object>();
+		PlaylistNode node = this;
+		nodes.add(node);
+		int start = path.length();
+		int index;
+		while ((index = playlist.indexOf('/', start)) >= 0) {
+			node.load();
+			node = node.folders.get(playlist.substring(start, index));
+			if (node == null) {
+				return null;
+			}
+			nodes.add(node);
+			start = index + 1;
+		}
+		node.load();
+		node = node.playlists.get(playlist);
+		if (node == null) {
+			return null;
+		}
+		nodes.add(node);
+		return new TreePath(nodes.toArray());
+	}
+
+	// Creates the nodes of the playlists and sub-folders directly in the folder, in the order in which they were first named
+	private void load() {
+		if (pending == null) {
+			return;
+		}
+		List<String> list = pending;
+		pending = null;
+		folders = new HashMap<String, PlaylistNode>();
+		playlists = new HashMap<String, PlaylistNode>();
+		for (String name: list) {
+			int index = name.indexOf('/', path.length());
+			if (index < 0) {
+				PlaylistNode node = new PlaylistNode(name.substring(path.length()), name, null);
+				playlists.put(name, node);
+				add(node);
+				continue;
+			}
+			String folderName = name.substring(path.length(), index);
+			PlaylistNode folder = folders.get(folderName);
+			if (folder == null) {
+				folder = new PlaylistNode(folderName, null, name.substring(0, index + 1));
+				folders.put(folderName, folder);
+				add(folder);
+			}
+			folder.pending.add(name);
+		}
+	}
+
+	// A folder is never a leaf, even if its children haven't been created yet
+	public boolean isLeaf() {
+		return playlist != null;
+	}
+
+	public int getChildCount() {
+		load();
+		return super.getChildCount();
+	}
+
+	public TreeNode getChildAt(int index) {
+		load();
+		return super.getChildAt(index);
+	}
+
+	public int getIndex(TreeNode node) {
+		load();
+		return super.getIndex(node);
+	}
+
+	public Enumeration children() {
+		load();
+		return super.children();
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.TreePath;
+
+// The PlaylistRegistry class holds all playlists by name (eg. "History/Sat Nov 26 20:15:00 CET 2016"),
+// in the order in which they were added, with the main "Tracks" playlist first.
+// It can also look up the name of a playlist (by identity, since different playlists may hold the same tracks)
+// and the path to the node that represents a playlist in the tree, once it has been found.
+class PlaylistRegistry {
+	private Map<String, List<Track>> playlists = new LinkedHashMap<String, List<Track>>();
+	private Map<List<Track>, String> names = new IdentityHashMap<List<Track>, String>();
+	private Map<String, TreePath> treePaths = new HashMap<String, TreePath>();
+
+	synchronized void add(String name, List<Track> playlist) {
+		List<Track> old = playlists.put(name, playlist);
+		if (old != null) {
+			names.remove(old);
+		}
+		names.put(playlist, name);
+	}
+
+	// Returns the playlist with the specified name, or null if there is none
+	synchronized List<Track> get(String name) {
+		return playlists.get(name);
+	}
+
+	// Returns the name of the playlist, or null if it isn't registered
+	synchronized String getName(List<Track> playlist) {
+		return names.get(playlist);
+	}
+
+	// Returns the names of all playlists, in the order in which they were added
+	synchronized List<String> getNames() {
+		return new ArrayList<String>(playlists.keySet());
+	}
+
+	synchronized void setTreePath(String name, TreePath treePath) {
+		treePaths.put(name, treePath);
+	}
+
+	// Returns the path to the node of the playlist in the tree, or null if it hasn't been found yet
+	synchronized TreePath getTreePath(String name) {
+		return treePaths.get(name);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// The SearchIndex class holds the searchable text of each track (the values of its columns),
+// with special characters already replaced and also in lower case.
+// This means that filtering doesn't have to process every value of every row again for every keystroke.
+// An entry is only recomputed once its track has changed (ie. its title, tags or duration), or the columns have changed.
+// Subclasses determine the values of a track in each column.
+// The names of the columns are passed in rather than taken from the table, since filtering happens on a background thread.
+abstract class SearchIndex {
+	private Map<Track, Entry> entries = new WeakHashMap<Track, Entry>();
+
+	// Returns the values of the track in the specified columns, exactly as displayed
+	protected abstract String[] getValues(Track track, String[] columns);
+
+	// Compiles the filter into a query, which returns null if the filter is not a valid regular expression
+	static Query compile(String filter, boolean caseSensitive) {
+		try {
+			return new Query(filter, caseSensitive);
+		} catch (PatternSyntaxException pse) {
+			return null;
+		}
+	}
+
+	// The same array of columns must be passed in for as long as the columns don't change, since entries are only
+	// recomputed if a different array is passed in
+	synchronized boolean matches(Track track, Query query, String[] columns) {
+		Entry entry = entries.get(track);
+		int modCount = track.getModCount();
+		if (entry == null || entry.modCount != modCount || entry.columns != columns) {
+			entry = new Entry(modCount, columns, getValues(track, columns));
+			entries.put(track, entry);
+		}
+		return query.matches(entry);
+	}
+
+	static class Query {
+		private static final String SPECIAL_CHARS = "\\^$.|?*+()[]{}";
+
+		private boolean caseSensitive;
+		private String literal; // Null if the filter is a regular expression
+		private Pattern pattern;
+
+		private Query(String filter, boolean caseSensitive) {
+			this.caseSensitive = caseSensitive;
+			filter = Util.replaceSpecialChars(filter);
+			if (isLiteral(filter)) {
+				// Plain text (by far the most common case) is simply looked up in each value
+				literal = caseSensitive ? filter : filter.toLowerCase(Locale.ROOT);
+			} else {
+				int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+				pattern = Pattern.compile(filter, flags);
+			}
+		}
+
+		private static boolean isLiteral(String filter) {
+			for (int i = 0; i < filter.length(); i++) {
+				if (SPECIAL_CHARS.indexOf(filter.charAt(i)) >= 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean matches(Entry entry) {
+			if (literal != null) {
+				String[] values = caseSensitive ? entry.values : entry.lowerCaseValues;
+				for (String value: values) {
+					if (value.contains(literal)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			for (String value: entry.values) {
+				if (pattern.matcher(value).find()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Entry {
+		private int modCount; // Mod count of the track when the entry was computed
+		private String[] columns; // The columns that the values were computed for
+		private String[] values;
+		private String[] lowerCaseValues;
+
+		private Entry(int modCount, String[] columns, String[] values) {
+			this.modCount = modCount;
+			this.columns = columns;
+			this.values = new String[values.length];
+			this.lowerCaseValues = new String[values.length];
+			for (int i = 0; i < values.length; i++) {
+				this.values[i] = Util.replaceSpecialChars(values[i]);
+				this.lowerCaseValues[i] = this.values[i].toLowerCase(Locale.ROOT);
+			}
+		}
+	}
+}
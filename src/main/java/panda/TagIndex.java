@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+// The TagIndex class maps the values of each tag to the tracks that have them (an inverted index).
+// Tracks are identified by their ids, which are allocated consecutively, so the tracks having a value are held in a bitset.
+// A value that contains commas (eg. "Carlos Heredia, Hugo Duval") is indexed by each of its parts.
+// The index is updated by Track.setTag, so it always reflects the current tags of all tracks.
+class TagIndex {
+	// Tag name -> value -> ids of tracks
+	private static Map<String, Map<String, BitSet>> index = new HashMap<String, Map<String, BitSet>>();
+
+	static synchronized void update(Track track, String name, String oldValue, String newValue) {
+		Map<String, BitSet> values = index.get(name);
+		if (values == null) {
+			values = new HashMap<String, BitSet>();
+			index.put(name, values);
+		}
+		int id = track.getId();
+		if (oldValue != null) {
+			for (String value: split(oldValue)) {
+				BitSet ids = values.get(value);
+				if (ids != null) {
+					ids.clear(id);
+					if (ids.isEmpty()) {
+						values.remove(value);
+					}
+				}
+			}
+		}
+		if (newValue != null) {
+			for (String value: split(newValue)) {
+				BitSet ids = values.get(value);
+				if (ids == null) {
+					ids = new BitSet();
+					values.put(value, ids);
+				}
+				ids.set(id);
+			}
+		}
+	}
+
+	// Returns the distinct values of the tag, in alphabetical order
+	static synchronized SortedSet<String> getValues(String name) {
+		SortedSet<String> set = new TreeSet<String>();
+		Map<String, BitSet> values = index.get(name);
+		if (values != null) {
+			set.addAll(values.keySet());
+		}
+		return set;
+	}
+
+	// Returns the ids of the tracks that have the value for the tag
+	static synchronized BitSet get(String name, String value) {
+		Map<String, BitSet> values = index.get(name);
+		BitSet ids = values == null ? null : values.get(value);
+		return ids == null ? new BitSet() : (BitSet) ids.clone();
+	}
+
+	// Returns the ids of the tracks whose (numeric) value for the tag lies within the range (inclusive).
+	// Values that are not numeric (eg. an unknown year) are not included.
+	static synchronized BitSet getRange(String name, int from, int to) {
+		BitSet result = new BitSet();
+		Map<String, BitSet> values = index.get(name);
+		if (values == null) {
+			return result;
+		}
+		for (Map.Entry<String, BitSet> entry: values.entrySet()) {
+			try {
+				int number = Integer.parseInt(entry.getKey());
+				if (number >= from && number <= to) {
+					result.or(entry.getValue());
+				}
+			} catch (NumberFormatException nfe) {
+			}
+		}
+		return result;
+	}
+
+	private static List<String> split(String string) {
+		List<String> list = new ArrayList<String>(1);
+		if (string.indexOf(',') < 0) {
+			string = string.trim();
+			if (string.length() > 0) {
+				list.add(string);
+			}
+			return list;
+		}
+		for (String s: string.split(",")) {
+			s = s.trim();
+			if (s.length() > 0) {
+				list.add(s);
+			}
+		}
+		return list;
+	}
+
+	// A conjunction of conditions on tags, eg. genre=Vals and orchestra=Rodolfo Biagi and year in 1938-1942
+	static class Query {
+		private List<String> names = new ArrayList<String>();
+		private List<String> values = new ArrayList<String>(); // Null for a range
+		private List<int[]> ranges = new ArrayList<int[]>(); // Null for a value
+
+		Query and(String name, String value) {
+			names.add(name);
+			values.add(value);
+			ranges.add(null);
+			return this;
+		}
+
+		Query and(String name, int from, int to) {
+			names.add(name);
+			values.add(null);
+			ranges.add(new int[] {from, to});
+			return this;
+		}
+
+		boolean isEmpty() {
+			return names.isEmpty();
+		}
+
+		// Returns the ids of the tracks that meet all the conditions
+		BitSet evaluate() {
+			BitSet result = null;
+			for (int i = 0; i < names.size(); i++) {
+				int[] range = ranges.get(i);
+				BitSet ids = range == null ? get(names.get(i), values.get(i)) : getRange(names.get(i), range[0], range[1]);
+				if (result == null) {
+					result = ids;
+				} else {
+					result.and(ids);
+				}
+				if (result.isEmpty()) {
+					break;
+				}
+			}
+			return result == null ? new BitSet() : result;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < names.size(); i++) {
+				if (i > 0) {
+					sb.append(" and ");
+				}
+				int[] range = ranges.get(i);
+				sb.append(names.get(i));
+				sb.append(range == null ? "=" + values.get(i) : " in " + range[0] + "-" + range[1]);
+			}
+			return sb.toString();
+		}
+	}
+}
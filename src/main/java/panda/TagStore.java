@@ -0,0 +1,130 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The TagStore class holds the tags of all tracks in columns: one array of values per tag name, indexed by track id.
+// This takes far less memory than a map per track, especially since the values are shared:
+// each distinct value (eg. an orchestra name) is held once, no matter how many tracks have it.
+// Tag names are stored once too, as the names of the columns.
+class TagStore {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static Map<String, Integer> columns = new HashMap<String, Integer>(); // Tag name -> column number
+	private static List<String> names = new ArrayList<String>(); // Column number -> tag name
+	private static List<String[]> values = new ArrayList<String[]>(); // Column number -> value for each track id
+	private static Map<String, String> dictionary = new HashMap<String, String>(); // The shared instance of each value
+
+	// Sets the tag for the track, and returns its previous value (null if it didn't have the tag).
+	// A null value removes the tag.
+	static synchronized String put(int id, String name, String value) {
+		Integer column = columns.get(name);
+		if (column == null) {
+			if (value == null) {
+				return null;
+			}
+			column = names.size();
+			columns.put(name, column);
+			names.add(name);
+			values.add(new String[Math.max(INITIAL_CAPACITY, id + 1)]);
+		}
+		String[] array = values.get(column);
+		if (id >= array.length) {
+			array = Arrays.copyOf(array, Math.max(id + 1, 2 * array.length));
+			values.set(column, array);
+		}
+		String oldValue = array[id];
+		array[id] = value == null ? null : share(value);
+		return oldValue;
+	}
+
+	// Returns the value of the tag for the track, or null if it doesn't have the tag
+	static synchronized String get(int id, String name) {
+		Integer column = columns.get(name);
+		if (column == null) {
+			return null;
+		}
+		String[] array = values.get(column);
+		return id < array.length ? array[id] : null;
+	}
+
+	// Returns the tags of the track as a read-only map, which reads from the store
+	static Map<String, String> getTags(int id) {
+		return new Tags(id);
+	}
+
+	private static String share(String value) {
+		String shared = dictionary.get(value);
+		if (shared == null) {
+			// Substrings may hold on to the (much longer) line they were taken from, so keep a copy
+			shared = new String(value);
+			dictionary.put(shared, shared);
+		}
+		return shared;
+	}
+
+	// Returns the names and values of the tags of the track, in the order in which the tag names were first used
+	private static synchronized List<Map.Entry<String, String>> getEntries(int id) {
+		List<Map.Entry<String, String>> list = new ArrayList<Map.Entry<String, String>>();
+		for (int i = 0; i < names.size(); i++) {
+			String[] array = values.get(i);
+			if (id < array.length && array[id] != null) {
+				list.add(new AbstractMap.SimpleImmutableEntry<String, String>(names.get(i), array[id]));
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	// The entries are copied when iterated, so the map can be iterated on any thread
+	private static class Tags extends AbstractMap<String, String> {
+		private int id;
+
+		private Tags(int id) {
+			this.id = id;
+		}
+
+		public String get(Object key) {
+			return key instanceof String ? TagStore.get(id, (String) key) : null;
+		}
+
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return getEntries(id).iterator();
+				}
+
+				public int size() {
+					return getEntries(id).size();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.util.List;
+
+// The TandaIndex class divides a playlist into segments: tandas and cortinas.
+// Only checked tracks (that aren't missing) belong to segments, so unchecked tracks are simply skipped over.
+// A tanda is a run of tracks of the same projector genre, whereas a cortina is a run of tracks of any other genre.
+// The index is built when first used and is then kept up to date as tracks are checked, unchecked or edited,
+// by re-segmenting only the part of the playlist around the track that changed.
+// If tracks are added to or removed from the playlist then the index is simply rebuilt.
+class TandaIndex {
+	private List<Track> playlist;
+	private boolean valid; // False if the index must be rebuilt before it is used
+	private int size; // Size of the playlist when the index was built
+	private int firstChecked; // Index of the first checked track, or -1 if none
+	private int[] nextChecked; // Index of the first checked track after each track, or -1 if none
+	private String[] genres; // The projector genre of each track, or null if it is a cortina
+	private Segment[] segments; // The segment of each checked track, or null if unchecked
+	private int[] positions; // Position of each checked track within its segment (starting at 1)
+
+	TandaIndex(List<Track> playlist) {
+		this.playlist = playlist;
+	}
+
+	// Invoked when tracks are added to or removed from the playlist
+	synchronized void invalidate() {
+		valid = false;
+	}
+
+	// Invoked when the track at the specified index has been checked, unchecked or edited
+	synchronized void changed(int index) {
+		if (!valid || playlist.size() != size || index < 0 || index >= size) {
+			valid = false;
+			return;
+		}
+		genres[index] = getGenre(playlist.get(index));
+		boolean checked = isChecked(index);
+		// Tracks up to and including the previous checked track now have a different next checked track
+		int previous = -1;
+		for (int i = index - 1; i >= 0; i--) {
+			nextChecked[i] = isChecked(i + 1) ? i + 1 : nextChecked[i + 1];
+			if (isChecked(i)) {
+				previous = i;
+				break;
+			}
+		}
+		if (previous < 0) {
+			firstChecked = checked ? index : nextChecked[index];
+		}
+		if (!checked) {
+			segments[index] = null;
+		}
+		// Re-segment from the start of the segment before the track, up to where the segments are the same as before
+		int from = previous < 0 ? firstChecked : segments[previous].first;
+		segment(from, index);
+	}
+
+	// Returns the index of the first checked track after the specified index, or -1 if none
+	synchronized int getNextChecked(int index) {
+		validate();
+		if (index < 0) {
+			return firstChecked;
+		}
+		return index < size ? nextChecked[index] : -1;
+	}
+
+	// Returns true if the track at the specified index is not of one of the projector genres
+	synchronized boolean isCortina(int index) {
+		validate();
+		if (index < 0 || index >= size) {
+			return true;
+		}
+		return genres[index] == null;
+	}
+
+	// Returns the projector genre of the track at the specified index, or null if it is a cortina
+	synchronized String getGenre(int index) {
+		validate();
+		if (index < 0 || index >= size) {
+			return null;
+		}
+		return genres[index];
+	}
+
+	// Returns the segment that the track at the specified index belongs to, or null if the track is not checked
+	synchronized Segment getSegment(int index) {
+		validate();
+		if (index < 0 || index >= size) {
+			return null;
+		}
+		return segments[index];
+	}
+
+	// Returns the position (starting at 1) of the track at the specified index within its segment, or 0 if not checked
+	synchronized int getPosition(int index) {
+		validate();
+		if (index < 0 || index >= size || segments[index] == null) {
+			return 0;
+		}
+		return positions[index];
+	}
+
+	// Returns the segment that follows the specified segment, or null if it is the last one
+	synchronized Segment getNextSegment(Segment segment) {
+		validate();
+		int next = nextChecked[segment.last];
+		return next < 0 ? null : segments[next];
+	}
+
+	// Returns the first tanda that follows a cortina, starting at the first checked track at or after the specified index.
+	// If the specified flag is set then a cortina is considered to have been found already.
+	synchronized Segment findNextTanda(int index, boolean cortinaFound) {
+		validate();
+		int first = index < size && index >= 0 && isChecked(index) ? index : getNextChecked(index);
+		if (first < 0) {
+			return null;
+		}
+		Segment segment = segments[first];
+		while (segment != null) {
+			if (segment.genre == null) {
+				cortinaFound = true;
+			} else if (cortinaFound) {
+				return segment;
+			}
+			segment = getNextSegment(segment);
+		}
+		return null;
+	}
+
+	private synchronized void validate() {
+		if (valid && playlist.size() == size) {
+			return;
+		}
+		size = playlist.size();
+		nextChecked = new int[size];
+		genres = new String[size];
+		segments = new Segment[size];
+		positions = new int[size];
+		int next = -1;
+		for (int i = size - 1; i >= 0; i--) {
+			nextChecked[i] = next;
+			genres[i] = getGenre(playlist.get(i));
+			if (isChecked(i)) {
+				next = i;
+			}
+		}
+		firstChecked = next;
+		valid = true;
+		segment(firstChecked, size);
+	}
+
+	// Builds segments from the specified (checked) track onwards.
+	// Stops at the first segment boundary after the specified index that was also a boundary before.
+	private void segment(int from, int index) {
+		Segment segment = null;
+		for (int i = from; i >= 0; i = nextChecked[i]) {
+			String genre = genres[i];
+			if (segment == null || !same(genre, segment.genre)) {
+				if (i > index && segments[i] != null && segments[i].first == i && segment != null) {
+					// The rest of the playlist is segmented as before
+					return;
+				}
+				segment = new Segment(i, genre);
+			}
+			segment.add(i, playlist.get(i));
+			segments[i] = segment;
+			positions[i] = segment.count;
+		}
+	}
+
+	private boolean isChecked(int index) {
+		Track track = playlist.get(index);
+		return track.isChecked() && !track.isMissing();
+	}
+
+	private static String getGenre(Track track) {
+		String genre = track.getTag("genre");
+		return Config.projectorGenres.contains(genre) ? genre : null;
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	// A tanda (or cortina) of consecutive checked tracks
+	static class Segment {
+		private int first; // Index of the first track
+		private int last; // Index of the last track
+		private int count; // Number of tracks
+		private String genre; // Null if it is a cortina
+		private String orchestra; // The orchestra of all the tracks, or "Mixed"
+
+		private Segment(int first, String genre) {
+			this.first = first;
+			this.genre = genre;
+		}
+
+		private void add(int index, Track track) {
+			last = index;
+			count++;
+			String o = track.getTag("orchestra");
+			if (orchestra == null) {
+				orchestra = o;
+			} else if (!orchestra.equals(o)) {
+				orchestra = "Mixed";
+			}
+		}
+
+		int getFirst() {
+			return first;
+		}
+
+		int getLast() {
+			return last;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		String getGenre() {
+			return genre;
+		}
+
+		String getOrchestra() {
+			return orchestra;
+		}
+
+		boolean isCortina() {
+			return genre == null;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+// The Timings class records how long the phases of startup take, along with a few events (eg. the window being opened).
+// Phases are named and can be nested: a phase that begins while another phase is active on the same thread is part of it.
+// Each phase is logged when it ends (as Util.stopTimer does), and in addition:
+// - A summary of the run is written to PANDA_HOME/panda.timings, with one phase, event or value per line (tab-separated)
+// - One line per run is appended to PANDA_HOME/panda.timings.history, which keeps only the most recent runs
+// All times are in milliseconds, and the start times of phases and events are relative to the origin of the run:
+// the time at which the launch script started Panda (if it passes it in), or else the start of main.
+// The origin is deliberately not taken from the JVM's management beans, since loading those would add to the startup being measured.
+class Timings {
+	private static final int HISTORY_SIZE = 100;
+	private static long origin = System.currentTimeMillis(); // Replaced by the start passed in by the launch script, if any
+	private static final List<Phase> phases = new ArrayList<Phase>();
+	private static final Map<String, Long> events = new LinkedHashMap<String, Long>();
+	private static final Map<String, String> values = new LinkedHashMap<String, String>();
+	private static final ThreadLocal<Deque<Phase>> active = new ThreadLocal<Deque<Phase>>() {
+		protected Deque<Phase> initialValue() {
+			return new ArrayDeque<Phase>();
+		}
+	};
+
+	static {
+		set("java", System.getProperty("java.version"));
+		set("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+		set("processors", Runtime.getRuntime().availableProcessors());
+	}
+
+	// Invoked at the start of main, with the time at which the launch script started Panda (or a negative value if not passed in)
+	static synchronized void start(long launched) {
+		if (launched > 0) {
+			origin = launched;
+		}
+	}
+
+	// Begins a phase, which must be ended on the same thread
+	static Phase begin(String name) {
+		Deque<Phase> stack = active.get();
+		Phase parent = stack.peek();
+		Phase phase = new Phase(parent == null ? name : parent.path + "/" + name);
+		stack.push(phase);
+		synchronized (Timings.class) {
+			phases.add(phase);
+		}
+		return phase;
+	}
+
+	// Records the time of an event, relative to the origin of the run.
+	// Only the first occurrence of each event is recorded, and true is returned if this was it.
+	static boolean mark(String name) {
+		return mark(name, System.currentTimeMillis());
+	}
+
+	// Records an event without blocking the calling thread (eg. the play thread, which must keep the line fed).
+	// The time is taken straight away, but the event is recorded and the summary file written on a background thread.
+	static void markLater(final String name) {
+		final long millis = System.currentTimeMillis();
+		Thread thread = new Thread("Timings") {
+			public void run() {
+				if (mark(name, millis)) {
+					save(false);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private static synchronized boolean mark(String name, long millis) {
+		if (events.containsKey(name)) {
+			return false;
+		}
+		long time = millis - origin;
+		events.put(name, time);
+		Util.log(Level.INFO, "Event " + name + " after " + time + " milliseconds");
+		return true;
+	}
+
+	// Records a value that describes the run (eg. the number of tracks)
+	static synchronized void set(String name, Object value) {
+		values.put(name, String.valueOf(value));
+	}
+
+	// Writes the summary file, and also adds the run to the history file if specified
+	static synchronized void save(boolean history) {
+		File file = new File(Config.PANDA_HOME + "panda.timings");
+		try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+			pw.println("# Panda timings - generated file");
+			pw.println("# value <name> <value>");
+			pw.println("# event <name> <time>");
+			pw.println("# phase <name> <start> <duration> <thread>");
+			for (Map.Entry<String, String> entry: values.entrySet()) {
+				pw.println("value\t" + entry.getKey() + "\t" + entry.getValue());
+			}
+			for (Map.Entry<String, Long> entry: events.entrySet()) {
+				pw.println("event\t" + entry.getKey() + "\t" + entry.getValue());
+			}
+			for (Phase phase: phases) {
+				pw.println("phase\t" + phase.path + "\t" + (phase.start - origin) + "\t" + phase.millis + "\t" + phase.thread);
+			}
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error writing timings: " + ioe);
+		}
+		if (history) {
+			saveHistory();
+		}
+	}
+
+	// Each line of the history file holds one run: the date, followed by name=value pairs (tab-separated)
+	private static void saveHistory() {
+		File file = new File(Config.PANDA_HOME + "panda.timings.history");
+		List<String> lines = new ArrayList<String>();
+		if (file.exists()) {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+				String line = null;
+				while ((line = br.readLine()) != null) {
+					lines.add(line);
+				}
+			} catch (IOException ioe) {
+				Util.log(Level.WARNING, "Error reading timings history: " + ioe);
+			}
+		}
+		DateFormat df = new SimpleDateFormat("yyyyMMdd.HHmmss");
+		StringBuilder sb = new StringBuilder(df.format(new Date()));
+		for (Map.Entry<String, String> entry: values.entrySet()) {
+			sb.append('\t').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		for (Map.Entry<String, Long> entry: events.entrySet()) {
+			sb.append('\t').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		for (Phase phase: phases) {
+			sb.append('\t').append(phase.path).append('=').append(phase.millis);
+		}
+		lines.add(sb.toString());
+		int from = Math.max(0, lines.size() - HISTORY_SIZE);
+		try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+			for (String line: lines.subList(from, lines.size())) {
+				pw.println(line);
+			}
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error writing timings history: " + ioe);
+		}
+	}
+
+	static class Phase {
+		private String path; // Name of the phase, preceded by the names of the phases it is part of
+		private String thread = Thread.currentThread().getName();
+		private long start = System.currentTimeMillis();
+		private long millis = -1; // Remains -1 if the phase hasn't ended
+
+		private Phase(String path) {
+			this.path = path;
+		}
+
+		void end() {
+			end(path);
+		}
+
+		// Ends the phase, logging it with the specified description
+		void end(String description) {
+			millis = System.currentTimeMillis() - start;
+			Deque<Phase> stack = active.get();
+			stack.remove(this);
+			Util.log(Level.INFO, description + " took " + millis + " millseconds");
+		}
+	}
+}
@@ -19,11 +19,14 @@ package panda;
 import java.io.*;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import javax.sound.sampled.*;
@@ -34,9 +37,13 @@ import panda.equalizer.*;
 // Find and use optimal buffer size - Look at JEQ test source for an idea...
 public class Track implements Comparable<Track> {
 	static final int BUFFER_SIZE = 8192; // 8KB
+	static final int PREROLL_SECONDS = 3; // Amount of audio that is decoded ahead of time in gapless mode
+	static final float SOFTWARE_MIN_GAIN = -80.0f; // Range of software gain (in dB), for lines without a gain control
+	static final float SOFTWARE_MAX_GAIN = 6.0206f;
+	private static AtomicInteger nextId = new AtomicInteger();
+	private final int id = nextId.getAndIncrement(); // Identifies the track in the tag index
 	private String filename;		// If null then it is not in library
 	private String title;			// Up to 32 characters
-	private Map<String, String> tags = new HashMap<String, String>();;
 	private boolean checked = true;	// Flag to indicate if checbox in UI is selected
 	private boolean missing;		// Flag to indicate that the file is missing
 
@@ -52,15 +59,55 @@ public class Track implements Comparable<Track> {
 	private IIRControls equalizerControl;
 
 	private int volume = 14;
+	private float gain;				// Gain in dB, derived from the volume
+	private float balance;			// Ranges from -1.0 (left) to 1.0 (right)
 	private boolean fade;			// Flag to indicate that track must be faded out
 
+	private static boolean firstAudio; // True once the first audio has been written to the line (only by the play thread)
+	private static Crossfader crossfader = new Crossfader(); // Shared by all tracks, since only one track plays at a time
+	private boolean crossfaded;		// Flag to indicate that the track ended by crossfading into the next track
+
+	// Tracks that are loaded lazily are probed on these threads, at low priority so as not to disturb playback
+	private static ExecutorService prober = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Prober");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	private volatile int modCount;	// Incremented whenever the title, tags or duration change, so that cached values can be refreshed
+	private volatile boolean probed; // Flag to indicate that the audio format and duration are known
+	private boolean probing;		// Flag to indicate that the track has been queued for probing
+
+	private final Object prepareLock = new Object();
+	private AudioInputStream preparedStream; // Stream that was opened and pre-rolled ahead of time (gapless mode)
+
+	// Only the header of the file is read, to determine the audio format and duration.
+	// WAV files are parsed directly, anything else is left to Java Sound.
 	public Track(String filename) throws IOException, UnsupportedAudioFileException {
 		this.filename = filename;
-		Util.log(Level.FINE, "Getting audio input stream for track: " + filename);
-		File file = new File(Panda.TRACKS + filename);
-		ais = AudioSystem.getAudioInputStream(file);
+		probe();
+	}
 
-		audioFormat = ais.getFormat();
+	// Probes the file (unless it has already been probed)
+	synchronized void probe() throws IOException, UnsupportedAudioFileException {
+		if (probed) {
+			return;
+		}
+		Util.log(Level.FINE, "Probing track: " + filename);
+		File file = new File(Panda.TRACKS + filename);
+		long frameLength = AudioSystem.NOT_SPECIFIED;
+		AudioFormat audioFormat = null;
+		WavFile wav = WavFile.read(file);
+		if (wav != null) {
+			audioFormat = wav.getFormat();
+			frameLength = wav.getFrameLength();
+		} else {
+			AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+			audioFormat = fileFormat.getFormat();
+			frameLength = fileFormat.getFrameLength();
+		}
 		Util.log(Level.FINE, "Audio format: " + audioFormat);
 		Util.log(Level.FINE, "  Channels=" + audioFormat.getChannels());
 		Util.log(Level.FINE, "  Encoding=" + audioFormat.getEncoding());
@@ -70,14 +117,89 @@ public class Track implements Comparable<Track> {
 		Util.log(Level.FINE, "  SampleSizeInBits=" + audioFormat.getSampleSizeInBits());
 		Util.log(Level.FINE, "  isBigEndian? " + audioFormat.isBigEndian());
 
+		if (frameLength == AudioSystem.NOT_SPECIFIED) {
+			// The header doesn't specify the length, so the only option is to count the bytes in the stream
+			Util.log(Level.FINE, "Calculating duration from stream...");
+			AudioInputStream stream = AudioSystem.getAudioInputStream(file);
+			try {
+				frameLength = count(stream) / audioFormat.getFrameSize();
+			} finally {
+				// Note: Must close stream - cannot keep all the files open at the same time (IOException: Too many open files)
+				stream.close();
+			}
+		}
+		// Calculated as a long, since the number of bytes can exceed the range of an int for files larger than 2GB
+		duration = (int) (frameLength / (long) audioFormat.getFrameRate());
+		Util.log(Level.FINE, "Duration: " + duration + " seconds");
+		this.audioFormat = audioFormat;
 		channels = audioFormat.getChannels();
+		probed = true;
+		modCount++;
+	}
 
-		Util.log(Level.FINE, "Calculating duration...");
-		int available = ais.available();
-		duration = available / (int) (audioFormat.getFrameRate() * audioFormat.getFrameSize()); 
-		Util.log(Level.FINE, "Duration: " + duration + " seconds");
-		// Note: Must close stream - cannot keep all the files open at the same time (IOException: Too many open files)
-		ais.close();
+	// Probes the file on a background thread and notifies listeners when done (lazy mode).
+	// Does nothing if the file has already been probed, or is being probed.
+	private void probeLater() {
+		synchronized (this) {
+			if (probed || probing || missing) {
+				return;
+			}
+			probing = true;
+		}
+		prober.execute(new Runnable() {
+			public void run() {
+				try {
+					probe();
+				} catch (IOException ioe) {
+					Util.log(Level.WARNING, "Error probing track " + filename + ": " + ioe);
+				} catch (UnsupportedAudioFileException uafe) {
+					Util.log(Level.WARNING, "Error probing track " + filename + ": " + uafe);
+				}
+				for (TrackListener listener: listeners) {
+					listener.probed(Track.this);
+				}
+			}
+		});
+	}
+
+	public boolean isProbed() {
+		return probed;
+	}
+
+	// Takes the audio format and duration from another track for the same file, which has just been probed
+	// (eg. when a file that was missing comes back, since it may have changed in the meantime)
+	synchronized void setProbed(Track track) {
+		audioFormat = track.getAudioFormat();
+		channels = audioFormat.getChannels();
+		duration = track.getKnownDuration();
+		probed = true;
+		modCount++;
+	}
+
+	// Returns the number of bytes remaining in the stream, by reading all of them
+	private static long count(InputStream is) throws IOException {
+		long count = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (true) {
+			int read = is.read(buffer);
+			if (read < 0) {
+				break;
+			}
+			count += read;
+		}
+		return count;
+	}
+
+	// For a track whose audio format and duration are already known (eg. from the track index), so that the file needn't be probed.
+	// If the audio format is null, then the file is only probed once the duration is needed (lazy mode).
+	Track(String filename, AudioFormat audioFormat, int duration) {
+		this.filename = filename;
+		if (audioFormat != null) {
+			this.audioFormat = audioFormat;
+			this.channels = audioFormat.getChannels();
+			this.duration = duration;
+			this.probed = true;
+		}
 	}
 
 	public Track(String filename, boolean missing) {
@@ -88,6 +210,10 @@ public class Track implements Comparable<Track> {
 		setMissing(true);
 	}
 
+	public int getId() {
+		return id;
+	}
+
 	public String getFilename() {
 		return filename;
 	}
@@ -98,21 +224,28 @@ public class Track implements Comparable<Track> {
 
 	public void setTitle(String title) {
 		this.title = title;
+		modCount++;
+		Journal.title(this, title);
 	}
 
 	public void setTag(String name, String value) {
-		tags.put(name, value);
+		String oldValue = TagStore.put(id, name, value);
+		TagIndex.update(this, name, oldValue, value);
+		modCount++;
+		Journal.tag(this, name, value);
 	}
 
 	public String getTag(String name) {
-		if (tags.containsKey(name)) {
-			return tags.get(name);
+		String value = TagStore.get(id, name);
+		if (value != null) {
+			return value;
 		}
 		return "";
 	}
 
+	// Tags are held by the tag store, so the map is a read-only view of them
 	public Map<String, String> getTags() {
-		return tags;
+		return TagStore.getTags(id);
 	}
 
 	public void setChecked(boolean value) {
@@ -125,6 +258,7 @@ public class Track implements Comparable<Track> {
 
 	public void setMissing(boolean value) {
 		missing = value;
+		modCount++;
 		if (missing) {
 			checked = false;
 		}
@@ -134,11 +268,12 @@ public class Track implements Comparable<Track> {
 		return missing;
 	}
 
+	public int getModCount() {
+		return modCount;
+	}
+
 	public float getGain() {
-		if (gainControl == null) {
-			return 0.0f;
-		}
-		return gainControl.getValue();
+		return gain;
 	}
 
 	public int getVolume() {
@@ -150,35 +285,67 @@ public class Track implements Comparable<Track> {
 	//   volume 14 = zero gain
 	//   volume 20 = maximum gain
 	// Values in-between are calculated to dB values
+	// If the line doesn't have a gain control, then the gain is applied in the equalizer stream instead,
+	// using the range of a typical gain control.
 	public void setVolume(int volume) {
 		this.volume = volume;
-		if (gainControl == null) {
-			return;
-		}
 		float gain = 0.0f;
-		float min = gainControl.getMinimum();
-		float max = gainControl.getMaximum();
+		float min = gainControl != null ? gainControl.getMinimum() : SOFTWARE_MIN_GAIN;
+		float max = gainControl != null ? gainControl.getMaximum() : SOFTWARE_MAX_GAIN;
 		if (volume > 14) {
 			gain = max - (20 - volume) * max / 6;
 		} else if (volume < 14) {
 			gain = (14 - volume) * min / 14;
 		}
 		Util.log(Level.FINE, "Setting gain to: " + gain);
-		gainControl.setValue(gain);
+		this.gain = gain;
+		if (gainControl != null) {
+			gainControl.setValue(gain);
+		} else {
+			setSoftwareVolume();
+		}
 	}
 
 	// Value can range from -10 to 10
+	// If the line doesn't have a balance control, then the balance is applied in the equalizer stream instead.
 	public void setBalance(int balance) {
-		if (balanceControl == null) {
-			return;
-		}
 		float floatValue = 0.0f;
 		if (balance != 0) {
 			// Float value ranges from -1.0 to 1.0
 			floatValue = balance / 10.0f;
 		}
 		Util.log(Level.FINE, "Setting track balance to: " + floatValue);
-		balanceControl.setValue(floatValue);
+		this.balance = floatValue;
+		if (balanceControl != null) {
+			balanceControl.setValue(floatValue);
+		} else {
+			setSoftwareVolume();
+		}
+	}
+
+	// Sets the equalizer stream's per-channel volume to whatever the line's controls can't do
+	private void setSoftwareVolume() {
+		IIRControls control = equalizerControl;
+		if (control == null) {
+			return;
+		}
+		float left = 1.0f;
+		if (gainControl == null) {
+			left = (float) Math.pow(10.0, gain / 20.0);
+		}
+		float right = left;
+		if (balanceControl == null) {
+			// Attenuate the opposite channel, the same way that a balance control does
+			if (balance > 0) {
+				left *= 1.0f - balance;
+			} else if (balance < 0) {
+				right *= 1.0f + balance;
+			}
+		}
+		control.setVolumeValue(0, left);
+		if (channels > 1) {
+			control.setVolumeValue(1, right);
+		}
 	}
 
 	public void setEqualizer(int band, int value) {
@@ -199,7 +366,16 @@ public class Track implements Comparable<Track> {
 		}
 	}
 
+	// Returns zero if the track hasn't been probed yet, in which case it is probed in the background
 	public int getDuration() {
+		if (!probed) {
+			probeLater();
+		}
+		return duration;
+	}
+
+	// Returns the duration without probing the track, which is 0 until it has been probed (lazy mode)
+	int getKnownDuration() {
 		return duration;
 	}
 
@@ -219,8 +395,20 @@ public class Track implements Comparable<Track> {
 		this.newPosition = position;
 	}
 
+	// Fades the track out and then stops it.
+	// The gain is ramped down sample by sample in the equalizer stream, so it doesn't depend on the line's gain control.
+	// Takes one second per volume level, same as the stepped fade that it replaced.
 	public void fade() {
 		fade = true;
+		IIRControls control = equalizerControl;
+		if (control != null) {
+			fadeOut(control.getGainRamp());
+		}
+	}
+
+	private void fadeOut(GainRamp ramp) {
+		int frames = (int) (Math.max(volume, 1) * audioFormat.getFrameRate());
+		ramp.rampTo(0.0f, frames, GainRamp.EXPONENTIAL);
 	}
 
 	public boolean isGainControlSupported() {
@@ -230,10 +418,149 @@ public class Track implements Comparable<Track> {
 	public boolean isBalanceControlSupported() {
 		return balanceControl != null ? true : false;
 	}
+
+	public boolean isCrossfaded() {
+		return crossfaded;
+	}
+
+	// Any track that doesn't have one of the configured genres is considered to be a cortina
+	private boolean isCortina() {
+		return !Config.projectorGenres.contains(getTag("genre"));
+	}
+
+	AudioFormat getAudioFormat() {
+		return audioFormat;
+	}
+
+	// Opens the audio stream (or takes the prepared stream) and applies the equalizer settings to it
+	private EqualizerAudioInputStream openEqualizerStream() throws IOException, UnsupportedAudioFileException {
+		ais = openStream(new File(Panda.TRACKS + filename));
+		EqualizerAudioInputStream eais = new EqualizerAudioInputStream(ais, Config.bands);
+		equalizerControl = eais.getControls();
+		setEqualizer();
+		setSoftwareVolume();
+		return eais;
+	}
+
+	// Starts mixing the next track into the end of this one, if crossfading is enabled and possible
+	private void startCrossfade(long frames) {
+		Track next = Player.getNextTrack();
+		if (next == null || next == this || next.isMissing()) {
+			return;
+		}
+		AudioFormat format = next.getAudioFormat();
+		if (format == null || !format.matches(audioFormat) || !Crossfader.isSupported(format)) {
+			Util.log(Level.FINE, "Cannot crossfade into track with audio format: " + format);
+			return;
+		}
+		// The next track will use the same line (since the format matches), so it can already use the same controls.
+		// That way its software volume and balance (if any) are right from the start of the crossfade.
+		next.gainControl = gainControl;
+		next.balanceControl = balanceControl;
+		next.setVolume(volume);
+		next.setBalance(Player.getBalance());
+		try {
+			crossfader.start(next, next.openEqualizerStream(), audioFormat, frames);
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error starting crossfade into " + next.getFilename() + ": " + ioe);
+		} catch (UnsupportedAudioFileException uafe) {
+			Util.log(Level.WARNING, "Error starting crossfade into " + next.getFilename() + ": " + uafe);
+		}
+	}
 	public void addTrackListener(TrackListener listener) {
 		listeners.add(listener);
 	}
 
+	// Opens the audio stream and decodes the first few seconds ahead of time,
+	// so that the next call to play() can start writing to the line immediately.
+	// Intended to be invoked on a background thread while the previous track is still playing.
+	public void prepare() throws IOException, UnsupportedAudioFileException {
+		if (missing) {
+			return;
+		}
+		synchronized (prepareLock) {
+			if (preparedStream != null) {
+				return;
+			}
+		}
+		long start = Util.startTimer();
+		// Make sure that the audio format is known in advance (eg. for crossfading)
+		probe();
+		File file = new File(Panda.TRACKS + filename);
+		AudioInputStream prepared = MappedAudioInputStream.open(file);
+		if (prepared != null) {
+			// There is nothing to decode, but make sure that the start of the track has been read from disk
+			AudioFormat format = prepared.getFormat();
+			((MappedAudioInputStream) prepared).load((long) (PREROLL_SECONDS * format.getFrameRate()) * format.getFrameSize());
+		} else {
+			AudioInputStream stream = AudioSystem.getAudioInputStream(file);
+			AudioFormat format = stream.getFormat();
+			int size = (int) (PREROLL_SECONDS * format.getFrameRate()) * format.getFrameSize();
+			byte[] preroll = new byte[size];
+			int length = 0;
+			while (length < size) {
+				int read = stream.read(preroll, length, size - length);
+				if (read < 0) {
+					break;
+				}
+				length += read;
+			}
+			// The pre-rolled bytes are played first, followed by whatever remains in the file
+			InputStream is = new SequenceInputStream(new ByteArrayInputStream(preroll, 0, length), stream);
+			prepared = new AudioInputStream(is, format, stream.getFrameLength());
+		}
+		synchronized (prepareLock) {
+			if (preparedStream == null) {
+				preparedStream = prepared;
+				Util.stopTimer(start, "Preparing " + filename);
+				return;
+			}
+		}
+		// Another thread beat us to it
+		prepared.close();
+	}
+
+	// Discards the stream opened by prepare() (if any), eg. when a different track has been chosen as the next track
+	public void release() {
+		AudioInputStream stream = null;
+		synchronized (prepareLock) {
+			stream = preparedStream;
+			preparedStream = null;
+		}
+		if (stream != null) {
+			Util.log(Level.FINE, "Releasing prepared stream for track: " + filename);
+			try {
+				stream.close();
+			} catch (IOException ioe) {
+				Util.log(Level.WARNING, "Error closing prepared stream for track " + filename + ": " + ioe);
+			}
+		}
+	}
+
+	public boolean isPrepared() {
+		synchronized (prepareLock) {
+			return preparedStream != null;
+		}
+	}
+
+	// Returns the prepared stream if there is one, else opens a fresh stream.
+	// WAV files are mapped into memory (so that they can seek), anything else is opened with Java Sound.
+	private AudioInputStream openStream(File file) throws IOException, UnsupportedAudioFileException {
+		synchronized (prepareLock) {
+			if (preparedStream != null) {
+				AudioInputStream stream = preparedStream;
+				preparedStream = null;
+				Util.log(Level.FINE, "Using prepared stream");
+				return stream;
+			}
+		}
+		AudioInputStream stream = MappedAudioInputStream.open(file);
+		if (stream != null) {
+			return stream;
+		}
+		return AudioSystem.getAudioInputStream(file);
+	}
+
 	// Can be called any number of times.
 	// Each time it is called, the track starts playing from the start
 	// Should only be invoked once at a time (across all instances)
@@ -245,6 +572,7 @@ public class Track implements Comparable<Track> {
 	public synchronized void play() throws IOException, UnsupportedAudioFileException, LineUnavailableException, LineUnavailableException {
 		Player.track = this;
 		Util.log(Level.INFO, "------------ Playing " + filename + " ------------");
+		probe();
 		File file = new File(Panda.TRACKS + filename);
 		// Note, when a track is played, it is by definition NOT stopped and at position 0.
 		// However, it may be paused, in which case it will get everything ready to play and then wait until it is unpaused before continuing
@@ -252,38 +580,27 @@ public class Track implements Comparable<Track> {
 		Player.play();
 		position = 0;
 		newPosition = -1;
-		// Make sure we obtain a fresh input stream...
-		ais = AudioSystem.getAudioInputStream(file);
-		EqualizerAudioInputStream eais = new EqualizerAudioInputStream(ais, Config.bands);
-
-		Util.log(Level.FINE, "Obtaining line...");
-		DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
-		SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-
-		Util.log(Level.FINE, "Adding line listener...");
-		line.addLineListener(new WavLineListener());
-
-		Util.log(Level.FINE, "Opening line...");
-		line.open(audioFormat);
-		// Cannot obtain controls before line is opened, yet need to set them before playing any sound
-		if (line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-			gainControl = (FloatControl) line.getControl(FloatControl.Type.MASTER_GAIN);
-		} else {
-			gainControl = null;
-		}
-		if (line.isControlSupported(FloatControl.Type.BALANCE)) {
-			balanceControl = (FloatControl) line.getControl(FloatControl.Type.BALANCE);
+		crossfaded = false;
+		long totalRead = 0; // Long, since WAV files can be larger than 2GB
+		// If the previous track crossfaded into this one, then continue with the stream it started.
+		EqualizerAudioInputStream eais = crossfader.take(this);
+		if (eais != null) {
+			totalRead = crossfader.getRead();
 		} else {
-			balanceControl = null;
+			// Else make sure we obtain a fresh input stream (unless one has already been prepared)...
+			eais = openEqualizerStream();
 		}
-		equalizerControl = eais.getControls();
+
+		// The line is shared with the previous track if it has the same audio format
+		SourceDataLine line = OutputLine.open(audioFormat);
+		// Controls are obtained when the line is opened and remain valid for as long as it is reused
+		gainControl = OutputLine.getGainControl();
+		balanceControl = OutputLine.getBalanceControl();
 		// Make sure new instance has volume, balance and equalizer set to same level as previous instance
 		setVolume(Player.getVolume());
 		setBalance(Player.getBalance());
 		setEqualizer();
 		fade = false;
-		Util.log(Level.FINE, "Starting line...");
-		line.start();
 
 		// Invoke listeners only after controls have been obtained...
 		for (TrackListener listener: listeners) {
@@ -291,16 +608,21 @@ public class Track implements Comparable<Track> {
 		}
 
 		byte[] buffer = new byte[BUFFER_SIZE];
-		int totalRead = 0;
-		long timestamp = System.currentTimeMillis();
+		boolean ended = false; // Flag to indicate that the end of the track was reached
+		long totalBytes = ais.getFrameLength() * audioFormat.getFrameSize();
+		long crossfadeBytes = 0;
+		if (Config.crossfade > 0 && isCortina() && ais.getFrameLength() != AudioSystem.NOT_SPECIFIED) {
+			crossfadeBytes = (long) (Config.crossfade * audioFormat.getFrameRate()) * audioFormat.getFrameSize();
+		}
 		while (true) {
 			//Util.log(Level.FINE, "Available: " + ais.available());
             int read = eais.read(buffer, 0, buffer.length);
 			if (read < 0) {
+				ended = true;
 				break;
 			}
 			totalRead += read;
-			int i = totalRead / (int) (audioFormat.getFrameRate() * audioFormat.getFrameSize()); 
+			int i = (int) (totalRead / (long) (audioFormat.getFrameRate() * audioFormat.getFrameSize()));
 			if (position != i) {
 				position = i;
 				Util.log(Level.FINE, "Position: " + position + " seconds");
@@ -312,16 +634,27 @@ public class Track implements Comparable<Track> {
 				Util.pause(100);
 			}
 			if (Player.isStopped()) {
+				crossfader.cancel();
 				break;
 			}
 			if (newPosition >= 0) {
+				crossfader.cancel();
 				long seek = (long) (newPosition * audioFormat.getFrameRate() * audioFormat.getFrameSize());
 				long skipped = 0;
-				if (newPosition > position) {
+				if (ais instanceof MappedAudioInputStream) {
+					Util.log(Level.FINE, "Seeking to position: " + newPosition);
+					// Seeking is merely a change of position in the mapped data (in either direction)
+					seek -= seek % audioFormat.getFrameSize();
+					((MappedAudioInputStream) ais).seek(seek);
+					eais.clear();
+					totalRead = ((MappedAudioInputStream) ais).getPosition();
+					newPosition = -1;
+					continue;
+				} else if (newPosition > position) {
 					Util.log(Level.FINE, "Seeking forward to position: " + newPosition);
 					long skip = seek - totalRead;
 					skipped = eais.skip(skip);
-					totalRead += (int) skipped;
+					totalRead += skipped;
 				} else if (newPosition < position) {
 					Util.log(Level.FINE, "Seeking backward to position: " + newPosition);
 					// Need to obtain new input stream in order to be able to seek backwards
@@ -329,9 +662,10 @@ public class Track implements Comparable<Track> {
 					eais = new EqualizerAudioInputStream(ais, Config.bands);
 					equalizerControl = eais.getControls();
 					setEqualizer();
+					setSoftwareVolume();
 					long skip = seek;
 					skipped = eais.skip(skip);
-					totalRead = (int) skipped;
+					totalRead = skipped;
 				}
 				newPosition = -1;
 				if (skipped > 0) {
@@ -339,19 +673,42 @@ public class Track implements Comparable<Track> {
 					continue;
 				}
 			}
-			if (fade && System.currentTimeMillis() - timestamp > 1000) {
-				// Reduce volume if more than a second has passed
-				int newVolume = getVolume() - 1;
-				if (newVolume < 0) {
+			if (fade) {
+				GainRamp ramp = equalizerControl.getGainRamp();
+				if (ramp.isSilent()) {
+					crossfader.cancel();
 					break;
 				}
-				setVolume(newVolume);
-				timestamp = System.currentTimeMillis();
+				if (ramp.getTarget() != 0.0f) {
+					// Seeking backwards opens a new stream, which starts at full gain
+					fadeOut(ramp);
+				}
+			}
+			// Start the crossfade as soon as the remainder of the track (including this buffer) fits into the crossfade
+			long remaining = totalBytes - (totalRead - read);
+			if (crossfadeBytes > 0 && !fade && !crossfader.isMixing() && remaining <= crossfadeBytes) {
+				startCrossfade(remaining / audioFormat.getFrameSize());
+			}
+			if (crossfader.isMixing()) {
+				crossfader.mix(buffer, read);
 			}
 			line.write(buffer, 0, read);
+			if (!firstAudio) {
+				// The timings are written in the background, since the line only holds a short buffer of audio
+				firstAudio = true;
+				Timings.markLater("firstAudio");
+			}
+		}
+		if (ended && crossfader.isMixing()) {
+			// The next track takes over from here
+			crossfader.handOver();
+			crossfaded = true;
+		}
+		if (!ended || (Config.wait > 0 && !crossfaded)) {
+			// Play whatever is still buffered before returning.
+			// But if the end was reached then the next track can simply continue writing to the line, without a gap.
+			line.drain();
 		}
-		line.drain();
-		line.close();
 		eais.close();
 	}
 
@@ -361,6 +718,7 @@ public class Track implements Comparable<Track> {
 		sb.append(filename);
 		sb.append(", title=");
 		sb.append(title);
+		Map<String, String> tags = getTags();
 		if (tags.size() > 0) {
 			sb.append(", tags: ");
 			Set set = tags.keySet();
@@ -383,42 +741,6 @@ public class Track implements Comparable<Track> {
 		return this.title.compareTo(that.title);
 	}
 
-	class WavLineListener implements LineListener {
-		boolean first = true;
-
-		public void update(LineEvent event) {
-			Util.log(Level.FINE, "Line event:" + event);
-			if (first) {
-				first = false;
-				Line line = event.getLine();
-				printInfo(line);
-			}
-			LineEvent.Type type = event.getType();
-			if (type.equals(LineEvent.Type.OPEN)) {
-				Util.log(Level.FINE, "OPEN");
-			}
-			if (type.equals(LineEvent.Type.START)) {
-				Util.log(Level.FINE, "START");
-			}
-			if (type.equals(LineEvent.Type.STOP)) {
-				Util.log(Level.FINE, "STOP");
-			}
-			if (type.equals(LineEvent.Type.CLOSE)) {
-				Util.log(Level.FINE, "CLOSE");
-			}
-		}
-
-		private void printInfo(Line line) {
-			Line.Info info = line.getLineInfo();
-			Util.log(Level.FINE, "Line info: " + info);
-			Control[] controls = line.getControls();
-			for (int i = 0; i < controls.length; i++) {
-				Control control = controls[i];
-				Util.log(Level.FINE, "Control #" + i + ": " + control);
-			}
-		}
-	}
-
 	// Main method is just for testing standalone on command line
 	public static void main(String[] args) throws Exception {
 		// TODO: Check args - not empty and files all exist...
@@ -428,6 +750,7 @@ public class Track implements Comparable<Track> {
 			Track track = new Track(filename);
 			track.play();
 		}
+		OutputLine.close();
 	}
 }
 
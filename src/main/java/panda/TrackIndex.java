@@ -0,0 +1,159 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.sound.sampled.AudioFormat;
+
+// The TrackIndex class caches the audio format and duration of each track file in PANDA_HOME/panda.index,
+// so that a file only needs to be probed again if its length or last modified time has changed.
+// The index is merely a cache: if it is missing or can't be read then all files are probed.
+// Each line holds the fields of one file, separated by tabs, with the filename last:
+//   length, last modified, encoding, sample rate, sample size, channels, frame size, frame rate, big endian, duration, filename
+class TrackIndex {
+	private static final String HEADER = "# Panda track index (version 1) - generated file, do not edit";
+	private static final int FIELDS = 11;
+
+	private File file = new File(Config.PANDA_HOME + "panda.index");
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private int hits;
+	private int saved = -1; // Number of tracks in the index file, if it has been saved
+
+	void load() {
+		if (!file.exists()) {
+			return;
+		}
+		long start = Util.startTimer();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line = br.readLine();
+			if (!HEADER.equals(line)) {
+				Util.log(Level.WARNING, "Ignoring track index with unknown format: " + file);
+				return;
+			}
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t", FIELDS);
+				if (fields.length != FIELDS) {
+					continue;
+				}
+				try {
+					Entry entry = new Entry();
+					entry.length = Long.parseLong(fields[0]);
+					entry.modified = Long.parseLong(fields[1]);
+					entry.format = new AudioFormat(new AudioFormat.Encoding(fields[2]), Float.parseFloat(fields[3]), Integer.parseInt(fields[4]),
+							Integer.parseInt(fields[5]), Integer.parseInt(fields[6]), Float.parseFloat(fields[7]), Boolean.parseBoolean(fields[8]));
+					entry.duration = Integer.parseInt(fields[9]);
+					entries.put(fields[10], entry);
+				} catch (NumberFormatException nfe) {
+					Util.log(Level.WARNING, "Ignoring invalid line in track index: " + line);
+				}
+			}
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error reading track index: " + ioe);
+			entries.clear();
+		}
+		Util.stopTimer(start, "Load of track index with " + entries.size() + " entries");
+	}
+
+	// Returns a track for the specified file without probing it, or null if the file is not in the index or has changed
+	Track get(String filename) {
+		Entry entry = entries.get(filename);
+		if (entry == null) {
+			return null;
+		}
+		File trackFile = new File(Panda.TRACKS + filename);
+		if (trackFile.length() != entry.length || trackFile.lastModified() != entry.modified) {
+			return null;
+		}
+		hits++;
+		return new Track(filename, entry.format, entry.duration);
+	}
+
+	// Rewrites the index with those of the specified tracks that have been probed, unless it is up to date,
+	// ie. every track was found in the index or no more tracks have been probed since the index was saved.
+	// Tracks that haven't been probed yet (lazy mode) are left out.
+	synchronized void save(Collection<Track> tracks) {
+		int count = 0;
+		for (Track track: tracks) {
+			if (!track.isMissing() && track.isProbed()) {
+				count++;
+			}
+		}
+		if (saved < 0 ? (count == hits && hits == entries.size()) : count == saved) {
+			Util.log(Level.FINE, "Track index is up to date");
+			return;
+		}
+		long start = Util.startTimer();
+		// Written to a temporary file which then replaces the index, so that the index is never left half-written
+		File temp = new File(file.getPath() + ".tmp");
+		try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"))) {
+			pw.println(HEADER);
+			for (Track track: tracks) {
+				if (track.isMissing() || !track.isProbed()) {
+					continue;
+				}
+				File trackFile = new File(Panda.TRACKS + track.getFilename());
+				AudioFormat format = track.getAudioFormat();
+				StringBuilder sb = new StringBuilder();
+				sb.append(trackFile.length()).append('\t');
+				sb.append(trackFile.lastModified()).append('\t');
+				sb.append(format.getEncoding()).append('\t');
+				sb.append(format.getSampleRate()).append('\t');
+				sb.append(format.getSampleSizeInBits()).append('\t');
+				sb.append(format.getChannels()).append('\t');
+				sb.append(format.getFrameSize()).append('\t');
+				sb.append(format.getFrameRate()).append('\t');
+				sb.append(format.isBigEndian()).append('\t');
+				sb.append(track.getDuration()).append('\t');
+				sb.append(track.getFilename());
+				pw.println(sb);
+			}
+			if (pw.checkError()) {
+				throw new IOException("Error writing " + temp);
+			}
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error writing track index: " + ioe);
+			return;
+		}
+		try {
+			Util.replace(temp, file);
+		} catch (IOException ioe) {
+			Util.log(Level.WARNING, "Error replacing track index: " + ioe);
+			return;
+		}
+		saved = count;
+		Util.stopTimer(start, "Save of track index with " + count + " entries (" + hits + " unchanged at startup)");
+	}
+
+	private static class Entry {
+		long length;
+		long modified;
+		AudioFormat format;
+		int duration;
+	}
+}
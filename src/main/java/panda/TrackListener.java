@@ -19,5 +19,6 @@ package panda;
 interface TrackListener {
 	public void started(Track track);  // Invoked when the play method is called
 	public void positionChanged(Track track);  // Invoked every time the (second) position in the audio stream changes
+	public void probed(Track track);  // Invoked when a lazily loaded track has been probed (on a background thread)
 }
 
@@ -27,6 +27,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
@@ -161,21 +165,41 @@ class Util {
 		Util.log(Level.INFO, operation + " took " + millis + " millseconds");
 	}
 
+	// Replaces accented characters with their unaccented equivalents, in a single pass.
+	// Strings without any such characters (the vast majority) are returned as is.
 	public static String replaceSpecialChars(String string) {
-//System.out.println("*** Before: " + string);
-		string = string.replace("ñ", "n"); // \u00F1
-		string = string.replace("Á", "A"); // \u00C1
-		string = string.replace("á", "a"); // \u00E1
-		string = string.replace("É", "E"); // \u00C9
-		string = string.replace("é", "e"); // \u00E9
-		string = string.replace("Í", "I"); // \u00CD
-		string = string.replace("í", "i"); // \u00ED
-		string = string.replace("Ó", "O"); // \u00D3
-		string = string.replace("ó", "o"); // \u00F3
-		string = string.replace("Ú", "U"); // \u00DA
-		string = string.replace("ú", "u"); // \u00FA
-//System.out.println("*** After: " + string);
-		return string;
+		int i = 0;
+		while (i < string.length() && replaceSpecialChar(string.charAt(i)) == string.charAt(i)) {
+			i++;
+		}
+		if (i == string.length()) {
+			return string;
+		}
+		char[] chars = string.toCharArray();
+		for (; i < chars.length; i++) {
+			chars[i] = replaceSpecialChar(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	private static char replaceSpecialChar(char c) {
+		if (c < '\u00C1') {
+			return c;
+		}
+		switch (c) {
+			case '\u00F1': return 'n'; // ñ
+			case '\u00C1': return 'A'; // Á
+			case '\u00E1': return 'a'; // á
+			case '\u00C9': return 'E'; // É
+			case '\u00E9': return 'e'; // é
+			case '\u00CD': return 'I'; // Í
+			case '\u00ED': return 'i'; // í
+			case '\u00D3': return 'O'; // Ó
+			case '\u00F3': return 'o'; // ó
+			case '\u00DA': return 'U'; // Ú
+			case '\u00FA': return 'u'; // ú
+			default: return c;
+		}
 	}
 
 	// Make component's foreground (ie. text) either black or white, depending on how light or dark the background is
@@ -295,6 +319,15 @@ class Util {
 		}
 	}
 
+	// Replaces a file with another (eg. a temporary file that has just been written), atomically if the file system allows it
+	public static void replace(File src, File dst) throws IOException {
+		try {
+			Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	public static boolean backup(File file, File backup, int minutes) throws IOException {
 		return backup(file, backup, minutes, -1);
 	}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFormat;
+
+// The WavFile class parses the header of a RIFF/WAVE file, without opening an audio stream.
+// Only the chunk headers and the "fmt " chunk are read, using a few small positioned reads.
+// Only uncompressed PCM is supported - anything else is left to Java Sound.
+class WavFile {
+	// Chunk IDs, as little-endian ints
+	private static final int RIFF = 0x46464952;
+	private static final int WAVE = 0x45564157;
+	private static final int FMT = 0x20746D66;
+	private static final int DATA = 0x61746164;
+	// Format tags
+	private static final int PCM = 0x0001;
+	private static final int EXTENSIBLE = 0xFFFE;
+	// Large enough for a chunk header plus the largest "fmt " chunk (WAVE_FORMAT_EXTENSIBLE)
+	private static final int HEADER_SIZE = 64;
+
+	private File file;
+	private AudioFormat format;
+	private long dataOffset; // Position of the first byte of audio data in the file
+	private long dataLength; // Number of bytes of audio data
+
+	private WavFile(File file, AudioFormat format, long dataOffset, long dataLength) {
+		this.file = file;
+		this.format = format;
+		this.dataOffset = dataOffset;
+		this.dataLength = dataLength;
+	}
+
+	// Returns null if the file is not an uncompressed PCM WAV file
+	static WavFile read(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (read(channel, buffer, 0) < 12 || buffer.getInt(0) != RIFF || buffer.getInt(8) != WAVE) {
+				return null;
+			}
+			AudioFormat format = null;
+			long position = 12;
+			while (position + 8 <= size) {
+				int n = read(channel, buffer, position);
+				int id = buffer.getInt(0);
+				long length = buffer.getInt(4) & 0xFFFFFFFFL;
+				if (id == FMT) {
+					format = parseFormat(buffer, n);
+					if (format == null) {
+						return null;
+					}
+				} else if (id == DATA) {
+					if (format == null) {
+						return null;
+					}
+					long offset = position + 8;
+					// Some programs leave the length at zero (or at the maximum) when they write a WAV file as a stream,
+					// so never go beyond the end of the file
+					if (length == 0 || length > size - offset) {
+						length = size - offset;
+					}
+					length -= length % format.getFrameSize();
+					return new WavFile(file, format, offset, length);
+				}
+				// Chunks are padded to an even number of bytes
+				position += 8 + length + (length & 1);
+			}
+			return null;
+		}
+	}
+
+	// Fills the buffer from the specified position in the file and returns the number of bytes read
+	private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		int n = 0;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+		}
+		return n;
+	}
+
+	// Buffer contains the chunk header, followed by the contents of the "fmt " chunk
+	private static AudioFormat parseFormat(ByteBuffer buffer, int n) {
+		if (n < 24) {
+			return null;
+		}
+		int tag = buffer.getShort(8) & 0xFFFF;
+		int channels = buffer.getShort(10) & 0xFFFF;
+		int sampleRate = buffer.getInt(12);
+		int blockAlign = buffer.getShort(20) & 0xFFFF;
+		int bits = buffer.getShort(22) & 0xFFFF;
+		if (tag == EXTENSIBLE && n >= 34) {
+			// The first two bytes of the sub-format GUID contain the actual format tag
+			tag = buffer.getShort(32) & 0xFFFF;
+		}
+		if (tag != PCM || channels == 0 || sampleRate <= 0 || bits == 0 || bits % 8 != 0 || blockAlign != channels * bits / 8) {
+			return null;
+		}
+		AudioFormat.Encoding encoding = bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+		return new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	AudioFormat getFormat() {
+		return format;
+	}
+
+	long getDataOffset() {
+		return dataOffset;
+	}
+
+	long getDataLength() {
+		return dataLength;
+	}
+
+	long getFrameLength() {
+		return dataLength / format.getFrameSize();
+	}
+}
@@ -47,6 +47,14 @@ public class EqualizerAudioInputStream extends AudioInputStream {
         return eq.getControls();
     }
 
+    /**
+     * Discards any buffered data and filter history.
+     * To be called after the position of the underlying stream was changed.
+     */
+    public void clear() {
+        eq.clear();
+    }
+
     /**
      * This is special method helps to determine supported audio format
      *
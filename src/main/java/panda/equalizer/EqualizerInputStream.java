@@ -23,18 +23,22 @@ public class EqualizerInputStream extends InputStream {
     private InputStream stream;
     private IIR iir;
 
-    private final static int BUFFER_SIZE = 65536;
-    private byte[] inbuf = new byte[BUFFER_SIZE];
-    private int[] workbuf = new int[BUFFER_SIZE];
-    private byte[] outbuf = new byte[BUFFER_SIZE];
-    private int inpos = 0;
-    private int inlen = 0;
-    private int outpos = 0;
-    private int outlen = 0;
+    /* Data is filtered in place, in the caller's buffer.
+     * Samples are converted to ints in chunks, using this scratch buffer */
+    private final static int SCRATCH_SIZE = 4096;
+    private int[] workbuf = new int[SCRATCH_SIZE];
+
+    /* A single filtered frame, for callers that read less than a frame at a time */
+    private byte[] pending;
+    private int pendpos = 0;
+    private int pendlen = 0;
 
     private boolean signed;
     private int samplesize;
     private boolean bigendian;
+    private int framesize;
+    /* Indicates that data was last passed through without filtering */
+    private boolean bypassed;
 
     /**
      * Constructs new EqualizerInputStream object
@@ -53,6 +57,8 @@ public class EqualizerInputStream extends InputStream {
         this.signed = signed;
         this.samplesize = samplesize;
         this.bigendian = bigendian;
+        this.framesize = channels * ((samplesize + 7) / 8);
+        this.pending = new byte[framesize];
 
         if (!isParamsSupported(samplerate, channels, samplesize, bands))
             throw new IllegalArgumentException("Unsupported sample bit size");
@@ -67,6 +73,17 @@ public class EqualizerInputStream extends InputStream {
         return iir.getControls();
     }
 
+    /**
+     * Discards any buffered data and filter history.
+     * To be called after the position of the underlying stream was changed,
+     * since the history no longer matches the data.
+     */
+    public void clear() {
+        pendpos = 0;
+        pendlen = 0;
+        iir.warmUp();
+    }
+
     /**
      * This is special method for checking of supported parameters of equalizer
      *
@@ -89,86 +106,83 @@ public class EqualizerInputStream extends InputStream {
         return IIR.isParamsSupported(bands, samplerate, channels);
     }
 
-    private boolean fillInBuffer() throws IOException {
-        if (inpos != 0 && inlen > 0)
-            System.arraycopy(inbuf, inpos, inbuf, 0, inlen);
-        inpos = 0;
-        int num;
-        boolean eof = false;
-        while (inlen != inbuf.length) {
-            num = stream.read(inbuf, inlen, inbuf.length - inlen);
-            if (num < 0) {
-                eof = true;
+    /* Reads whole frames straight from the stream into the given buffer */
+    private int readFrames(byte[] b, int off, int len) throws IOException {
+        int n = stream.read(b, off, len);
+        if (n <= 0)
+            return n;
+        while (n % framesize != 0) {
+            int num = stream.read(b, off + n, framesize - n % framesize);
+            if (num < 0)
                 break;
-            }
-            inlen += num;
+            n += num;
         }
-        return eof;
+        return n;
     }
 
-    private void fillOutBuffer() {
-        if (outpos != 0 && outlen > 0)
-            System.arraycopy(outbuf, outpos, outbuf, 0, outlen);
-        outpos = 0;
-        int len = outbuf.length - outlen;
-        len = inlen < len ? inlen : len;
-        len = convertToInt(len);
-        if (len > 0) {
-            iir.iir(workbuf, len);
-            len = convertToByte(outbuf, outlen, len);
-            outlen += len;
+    /* Reads whole frames into the given buffer and filters them in place */
+    private int readFiltered(byte[] b, int off, int len) throws IOException {
+        int n = readFrames(b, off, len);
+        if (n <= 0)
+            return n;
+        if (iir.isNeutral()) {
+            /* Filtering would change nothing, so pass the data straight through */
+            bypassed = true;
+            return n;
+        }
+        if (bypassed) {
+            bypassed = false;
+            iir.warmUp();
+        }
+        int bytes = samplesize / 8;
+        /* A partial frame at the end of the stream is left as is */
+        int length = n - n % framesize;
+        int chunk = SCRATCH_SIZE * bytes;
+        for (int p = off; p < off + length; p += chunk) {
+            int samples = Math.min(chunk, off + length - p) / bytes;
+            convertToInt(b, p, samples);
+            iir.iir(workbuf, samples);
+            convertToByte(b, p, samples);
         }
+        return n;
     }
 
-    private int convertToInt(int length) {
-        int l = length;
+    private void convertToInt(byte[] b, int off, int length) {
+        int p = off;
         int temp;
-        byte a1[];
         switch (samplesize) {
             case 8: {
-                if (length > 0) {
-                    System.arraycopy(inbuf, 0, workbuf, 0, length);
-                    inpos += length;
-                    inlen -= length;
-                }
+                for (int i = 0; i < length; i++)
+                    workbuf[i] = b[p++];
                 break;
             }
             case 16: {
-                l = length >> 1;
-                if (l > 0) {
-                    if (bigendian)
-                        for (int i = 0; i < l; i++) {
-                            temp = (((a1 = inbuf)[inpos++] & 0xff) << 8) | (a1[inpos++] & 0xff);
-                            workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
-                        }
-                    else
-                        for (int i = 0; i < l; i++) {
-                            temp = ((a1 = inbuf)[inpos++] & 0xff) | ((a1[inpos++] & 0xff) << 8);
-                            workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
-                        }
-                    inlen -= inpos;
-                }
+                if (bigendian)
+                    for (int i = 0; i < length; i++) {
+                        temp = ((b[p++] & 0xff) << 8) | (b[p++] & 0xff);
+                        workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
+                    }
+                else
+                    for (int i = 0; i < length; i++) {
+                        temp = (b[p++] & 0xff) | ((b[p++] & 0xff) << 8);
+                        workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
+                    }
                 break;
             }
             case 24: {
-                l = length / 3;
-                if (l > 0) {
-                    if (bigendian)
-                        for (int i = 0; i < l; i++) {
-                            temp = ((a1 = inbuf)[inpos++] & 0xff) | ((a1[inpos++] & 0xff) << 8) | ((a1[inpos++] & 0xff) << 16);
-                            workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
-                        }
-                    else
-                        for (int i = 0; i < l; i++) {
-                            temp = (((a1 = inbuf)[inpos++] & 0xff) << 16) | ((a1[inpos++] & 0xff) << 8) | (a1[inpos++] & 0xff);
-                            workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
-                        }
-                    inlen -= inpos;
-                }
+                if (bigendian)
+                    for (int i = 0; i < length; i++) {
+                        temp = (b[p++] & 0xff) | ((b[p++] & 0xff) << 8) | ((b[p++] & 0xff) << 16);
+                        workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
+                    }
+                else
+                    for (int i = 0; i < length; i++) {
+                        temp = ((b[p++] & 0xff) << 16) | ((b[p++] & 0xff) << 8) | (b[p++] & 0xff);
+                        workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
+                    }
                 break;
             }
         }
-        return l;
     }
 
     private int wrap8Bit(int data) {
@@ -201,7 +215,7 @@ public class EqualizerInputStream extends InputStream {
         return data;
     }
 
-    private int convertToByte(byte[] b, int off, int length) {
+    private void convertToByte(byte[] b, int off, int length) {
         int p = off;
         int d;
         switch (samplesize) {
@@ -245,7 +259,6 @@ public class EqualizerInputStream extends InputStream {
                 break;
             }
         }
-        return p - off;
     }
 
     /**
@@ -259,7 +272,8 @@ public class EqualizerInputStream extends InputStream {
      * @throws IOException if an I/O error occurs.
      */
     public int available() throws IOException {
-        return outlen;
+        int available = stream.available();
+        return pendlen + available - available % framesize;
     }
 
     /**
@@ -308,17 +322,15 @@ public class EqualizerInputStream extends InputStream {
      * @throws IOException if an I/O error occurs.
      */
     public int read() throws IOException {
-        if (outlen == 0) {
-            boolean eof = fillInBuffer();
-            fillOutBuffer();
-            if (outlen == 0 && eof)
+        if (pendlen == 0) {
+            int n = readFiltered(pending, 0, framesize);
+            if (n <= 0)
                 return -1;
-            if (outlen == 0 && !eof)
-                throw new IOException("Impossible state");
+            pendpos = 0;
+            pendlen = n;
         }
-        int b = outbuf[outpos++];
-        outlen--;
-        return b;
+        pendlen--;
+        return pending[pendpos++] & 0xff;
     }
 
     /**
@@ -371,21 +383,24 @@ public class EqualizerInputStream extends InputStream {
      * @throws NullPointerException if <code>b</code> is <code>null</code>.
      */
     public int read(byte[] b, int off, int len) throws IOException {
-        if (outlen < len) {
-            boolean eof = fillInBuffer();
-            fillOutBuffer();
-            if (outlen == 0 && eof)
-                return -1;
-            if (outlen == 0 && !eof)
-                throw new IOException("Impossible state");
+        if (len == 0)
+            return 0;
+        if (pendlen > 0) {
+            /* First return what is left of a frame that was partially read */
+            len = pendlen < len ? pendlen : len;
+            System.arraycopy(pending, pendpos, b, off, len);
+            pendpos += len;
+            pendlen -= len;
+            return len;
         }
-        len = outlen < len ? outlen : len;
-        if (len > 0) {
-            System.arraycopy(outbuf, outpos, b, off, len);
-            outpos += len;
-            outlen -= len;
+        if (len < framesize) {
+            int c = read();
+            if (c < 0)
+                return -1;
+            b[off] = (byte) c;
+            return 1;
         }
-        return len;
+        return readFiltered(b, off, len - len % framesize);
     }
 
     /**
@@ -412,25 +427,17 @@ public class EqualizerInputStream extends InputStream {
      * @throws IOException if an I/O error occurs.
      */
     public long skip(long n) throws IOException {
-        int l;
-        if (n <= outlen) {
-            outpos += n;
-            outlen -= n;
+        if (n <= 0)
+            return 0;
+        if (n <= pendlen) {
+            pendpos += n;
+            pendlen -= n;
             return n;
         }
-        n -= outlen;
-        l = outlen;
-        outlen = 0;
-        outpos = 0;
-        if (n <= inlen) {
-            inpos += n;
-            inlen -= n;
-            return l + n;
-        }
-        n -= inlen;
-        l += inlen;
-        inlen = 0;
-        inpos = 0;
+        long l = pendlen;
+        n -= pendlen;
+        pendlen = 0;
+        pendpos = 0;
         return stream.skip(n) + l;
     }
 
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (C) 2013-2016  Johan Steyn
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package panda.equalizer;
+
+public class GainRamp {
+    /**
+     * Ramp that changes the gain by the same amount every sample
+     */
+    public final static int LINEAR = 0;
+    /**
+     * Ramp that changes the gain by the same number of dB every sample
+     */
+    public final static int EXPONENTIAL = 1;
+
+    /* Lowest gain an exponential ramp can start from or end at (-80dB) */
+    private final static double MIN_GAIN = 1.0E-4;
+
+    /* The most recently requested target.
+     * Replaced as a whole, so that the filter never sees a half-updated target */
+    private volatile Target target = new Target(1.0f, 0, LINEAR);
+
+    /* State of the ramp, only accessed by the filtering thread */
+    private Target current = target;
+    private double gain = 1.0;
+    private double end = 1.0;
+    private double step;
+    private boolean exponential;
+    private int remaining;
+
+    /**
+     * Ramps the gain from its current value to the given value.
+     * May be called from any thread, and takes effect at the start of the next block of samples.
+     *
+     * @param value  is the target gain (1.0 leaves the signal unchanged)
+     * @param frames is the length of the ramp in frames (0 changes the gain immediately)
+     * @param shape  is either LINEAR or EXPONENTIAL
+     */
+    public void rampTo(float value, int frames, int shape) {
+        target = new Target(value, frames, shape);
+    }
+
+    /**
+     * Returns the most recently requested target gain
+     *
+     * @return the target gain
+     */
+    public float getTarget() {
+        return target.value;
+    }
+
+    /**
+     * Returns true if the ramp has reached its target and that target is silence
+     *
+     * @return true if silent
+     */
+    public boolean isSilent() {
+        Target t = target;
+        return t == current && remaining == 0 && gain == 0;
+    }
+
+    /**
+     * Returns true if the ramp has reached its target and that target leaves the signal unchanged
+     *
+     * @return true if unity gain
+     */
+    public boolean isUnity() {
+        Target t = target;
+        return t == current && remaining == 0 && gain == 1.0;
+    }
+
+    /**
+     * Picks up a new target (if any). Called once per block of samples.
+     */
+    void update() {
+        Target t = target;
+        if (t == current)
+            return;
+        current = t;
+        end = t.value;
+        if (t.frames <= 0) {
+            gain = end;
+            remaining = 0;
+            return;
+        }
+        remaining = t.frames;
+        exponential = t.shape == EXPONENTIAL;
+        if (exponential) {
+            /* Silence cannot be reached exponentially, so ramp to/from -80dB instead */
+            gain = Math.max(gain, MIN_GAIN);
+            step = Math.pow(Math.max(end, MIN_GAIN) / gain, 1.0 / remaining);
+        } else {
+            step = (end - gain) / remaining;
+        }
+    }
+
+    /**
+     * Returns the gain for the next frame
+     *
+     * @return the gain
+     */
+    double next() {
+        if (remaining > 0) {
+            if (--remaining == 0)
+                gain = end;
+            else if (exponential)
+                gain *= step;
+            else
+                gain += step;
+        }
+        return gain;
+    }
+
+    private static class Target {
+        final float value;
+        final int frames;
+        final int shape;
+
+        Target(float value, int frames, int shape) {
+            this.value = value;
+            this.frames = frames;
+            this.shape = shape;
+        }
+    }
+}
@@ -16,6 +16,8 @@
  */
 package panda.equalizer;
 
+import java.util.Arrays;
+
 public class IIR extends IIRBase {
     /**
      * Max number of channels supported
@@ -40,19 +42,29 @@ public class IIR extends IIRBase {
     public final static int EQ_25_BANDS = 25;
     public final static int EQ_31_BANDS = 31;
 
-    /* Indexes for the history arrays
-     * These have to be kept between calls to this function
-     * hence they are static */
-    private int i;
-    private int j;
-    private int k;
+    /* History for each filter, indexed by [channel * bands + band]
+     * These have to be kept between calls to iir()
+     * Values are shifted along instead of using ring indexes, which keeps the loop free of branches */
+    private double[] x1; /* x[n-1] */
+    private double[] x2; /* x[n-2] */
+    private double[] y1; /* y[n-1] */
+    private double[] y2; /* y[n-2] */
+
+    /* Coefficients for each band */
+    private double[] alpha;
+    private double[] beta;
+    private double[] gamma;
 
-    /* History for two filters */
-    private XYData[][] dataHistory = new XYData[EQ_MAX_BANDS][EQ_MAX_CHANNELS];
-    private XYData[][] dataHistory2 = new XYData[EQ_MAX_BANDS][EQ_MAX_CHANNELS];
+    /* Band gains, indexed by [channel * bands + band] (copied from the controls once per call) */
+    private double[] gain;
 
-    /* Coefficients */
-    private IIRCoefficients[] iircf;
+    /* Number of frames over which the filters' output is faded in after the history was cleared */
+    private final static int WARMUP_FRAMES = 1024;
+    /* Number of frames left to fade in */
+    private int warmup;
+
+    /* Preamp and volume combined, for each channel */
+    private double[] scale = new double[EQ_MAX_CHANNELS];
 
     /* Equalizer config */
     private IIRControls eqcfg;
@@ -127,17 +139,15 @@ public class IIR extends IIRBase {
     /* Init the filters */
     private void initIIR() {
         setFilters();
-        for (int ii = 0; ii < EQ_MAX_BANDS; ii++)
-            for (int jj = 0; jj < EQ_MAX_CHANNELS; jj++) {
-                dataHistory[ii][jj] = new XYData();
-                dataHistory2[ii][jj] = new XYData();
-            }
-        i = 0;
-        j = 2;
-        k = 1;
+        x1 = new double[channels * bands];
+        x2 = new double[channels * bands];
+        y1 = new double[channels * bands];
+        y2 = new double[channels * bands];
+        gain = new double[channels * bands];
     }
 
     private void setFilters() {
+        IIRCoefficients[] iircf = null;
         if (rate == EQ_11025_RATE)
             iircf = iir_cf10_11k_11025;
         else if (rate == EQ_22050_RATE)
@@ -173,6 +183,14 @@ public class IIR extends IIRBase {
                     break;
             }
         }
+        alpha = new double[bands];
+        beta = new double[bands];
+        gamma = new double[bands];
+        for (int band = 0; band < bands; band++) {
+            alpha[band] = iircf[band].alpha;
+            beta[band] = iircf[band].beta;
+            gamma[band] = iircf[band].gamma;
+        }
     }
 
     /**
@@ -180,14 +198,40 @@ public class IIR extends IIRBase {
      */
     public void cleanHistory() {
         /* Zero the history arrays */
-        for (int ii = 0; ii < EQ_MAX_BANDS; ii++)
-            for (int jj = 0; jj < EQ_MAX_CHANNELS; jj++) {
-                dataHistory[ii][jj].zero();
-                dataHistory2[ii][jj].zero();
-            }
-        i = 0;
-        j = 2;
-        k = 1;
+        Arrays.fill(x1, 0);
+        Arrays.fill(x2, 0);
+        Arrays.fill(y1, 0);
+        Arrays.fill(y2, 0);
+    }
+
+    /**
+     * Returns true if filtering would leave the data unchanged,
+     * ie. all bands are zero, preamp and volume are one and the gain ramp is at unity.
+     *
+     * @return true if neutral
+     */
+    public boolean isNeutral() {
+        float eqpreamp[] = eqcfg.getPreamp();
+        float eqvolume[] = eqcfg.getVolume();
+        float eqbands[][] = eqcfg.getBands();
+        for (int channel = 0; channel < channels; channel++) {
+            if (eqpreamp[channel] * eqvolume[channel] != 1.0f)
+                return false;
+            for (int band = 0; band < bands; band++)
+                if (eqbands[band][channel] != 0f)
+                    return false;
+        }
+        return eqcfg.getGainRamp().isUnity();
+    }
+
+    /**
+     * Clears the history and fades the filters' output in over the next few frames.
+     * To be called when filtering resumes after data was passed through unfiltered,
+     * since the history no longer matches the data and would otherwise cause a click.
+     */
+    public void warmUp() {
+        cleanHistory();
+        warmup = WARMUP_FRAMES;
     }
 
     /**
@@ -197,10 +241,20 @@ public class IIR extends IIRBase {
      * @param length - length of data in buffer
      */
     public void iir(int[] data, int length) {
-        int index, band, channel;
+        int index, band, channel, offset, n;
         float eqpreamp[] = eqcfg.getPreamp();
+        float eqvolume[] = eqcfg.getVolume();
         float eqbands[][] = eqcfg.getBands();
-        double pcm, out;
+        GainRamp ramp = eqcfg.getGainRamp();
+        double pcm, out, y, ramped, wet;
+
+        ramp.update();
+        /* Volume is folded into the preamp once per call, so it costs nothing per sample */
+        for (channel = 0; channel < channels; channel++) {
+            scale[channel] = eqpreamp[channel] * eqvolume[channel];
+            for (band = 0; band < bands; band++)
+                gain[channel * bands + band] = eqbands[band][channel];
+        }
 
         /**
          * IIR filter equation is
@@ -212,37 +266,42 @@ public class IIR extends IIRBase {
          * This algorithm cascades two filters to get nice filtering
          * at the expense of extra CPU cycles
          */
-        IIRCoefficients tempcf;
-        XYData tempd;
         for (index = 0; index < length; index += channels) {
+            /* The same gain is applied to all channels of a frame */
+            ramped = ramp.next();
+            /* Fade the filters in after the history was cleared */
+            if (warmup > 0) {
+                wet = 1.0 - (double) warmup / WARMUP_FRAMES;
+                warmup--;
+            } else {
+                wet = 1.0;
+            }
             /* For each channel */
             for (channel = 0; channel < channels; channel++) {
-                /* Preamp gain */
-                pcm = data[index + channel] * eqpreamp[channel];
+                /* Preamp gain and volume */
+                pcm = data[index + channel] * scale[channel];
 
                 out = 0f;
+                offset = channel * bands;
                 /* For each band */
                 for (band = 0; band < bands; band++) {
-                    /* Store Xi(n) */
-                    tempd = dataHistory[band][channel];
-                    tempd.x[i] = pcm;
-                    /* Calculate and store Yi(n) */
-                    tempcf = iircf[band];
-                    tempd.y[i] =
-                            (
-                                    /* 		= alpha * [x(n)-x(n-2)] */
-                                    tempcf.alpha * (pcm - tempd.x[k])
-                                            /* 		+ gamma * y(n-1) */
-                                            + tempcf.gamma * tempd.y[j]
-                                            /* 		- beta * y(n-2) */
-                                            - tempcf.beta * tempd.y[k]
-                            );
+                    n = offset + band;
+                    /* Calculate Yi(n) */
+                    y = alpha[band] * (pcm - x2[n])
+                            + gamma[band] * y1[n]
+                            - beta[band] * y2[n];
+                    /* Shift the history along */
+                    x2[n] = x1[n];
+                    x1[n] = pcm;
+                    y2[n] = y1[n];
+                    y1[n] = y;
                     /*
                      * The multiplication by 2.0 was 'moved' into the coefficients to save
                      * CPU cycles here */
                     /* Apply the gain  */
-                    out += (tempd.y[i] * eqbands[band][channel]); // * 2.0;
+                    out += y * gain[n]; // * 2.0;
                 } /* For each band */
+                out *= wet;
 
                 /* Volume stuff
                    Scale down original PCM sample and add it to the filters
@@ -255,23 +314,12 @@ public class IIR extends IIRBase {
                 /* Normalize the output */
                 out *= 4;
 
+                /* Apply the (ramped) gain */
+                out *= ramped;
+
                 /* Round and convert to integer */
                 data[index + channel] = (int) out;
             } /* For each channel */
-
-            i++;
-            j++;
-            k++;
-
-            /* Wrap around the indexes */
-            if (i == 3)
-                i = 0;
-            else if (j == 3)
-                j = 0;
-            else
-                k = 0;
-
-
         }/* For each pair of samples */
     }
 }
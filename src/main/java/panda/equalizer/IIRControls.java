@@ -27,6 +27,17 @@ public class IIRControls {
      * values should be between -0.2 and 1.0
      */
     private float bands[][];
+    /**
+     * Software volume (including balance) for each channel,
+     * for lines that don't have gain or balance controls.
+     * values should be between 0.0 and 2.0
+     */
+    private float volume[];
+    /**
+     * Gain applied to all channels after filtering,
+     * which can be ramped (eg. to fade out) without clicks
+     */
+    private GainRamp gainRamp = new GainRamp();
 
     /**
      * Creates new IIRControls object for given number of bands
@@ -36,9 +47,11 @@ public class IIRControls {
      */
     public IIRControls(int bandsnum, int channels) {
         preamp = new float[channels];
+        volume = new float[channels];
         bands = new float[bandsnum][channels];
         for (int j = 0; j < channels; j++) {
             preamp[j] = 1.0f;
+            volume[j] = 1.0f;
             for (int i = 0; i < bandsnum; i++)
                 bands[i][j] = 0f;
         }
@@ -134,6 +147,44 @@ public class IIRControls {
         return preamp;
     }
 
+    /**
+     * Returns volume array
+     *
+     * @return volume array
+     */
+    float[] getVolume() {
+        return volume;
+    }
+
+    /**
+     * Returns value of volume control for given channel
+     *
+     * @param channel is the index of channel
+     * @return the value
+     */
+    public float getVolumeValue(int channel) {
+        return volume[channel];
+    }
+
+    /**
+     * Setter for value of volume control for given channel
+     *
+     * @param channel is the index of channel
+     * @param value   is the new value
+     */
+    public void setVolumeValue(int channel, float value) {
+        volume[channel] = value;
+    }
+
+    /**
+     * Returns the gain ramp
+     *
+     * @return the gain ramp
+     */
+    public GainRamp getGainRamp() {
+        return gainRamp;
+    }
+
     /**
      * Returns value of control for given band and channel
      *